@@ -18,22 +18,22 @@
 
 package onlyoffice;
 
+import com.atlassian.confluence.pages.Attachment;
 import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
 import com.atlassian.confluence.user.ConfluenceUser;
-import com.google.gson.Gson;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.google.gson.stream.JsonWriter;
 import onlyoffice.managers.configuration.ConfigurationManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.download.DownloadManager;
+import onlyoffice.managers.execution.ExecutionManager;
+import onlyoffice.managers.image.ImageManager;
 import onlyoffice.managers.jwt.JwtManager;
 import onlyoffice.managers.url.UrlManager;
 import onlyoffice.utils.attachment.AttachmentUtil;
 import onlyoffice.utils.parsing.ParsingUtil;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
@@ -46,14 +46,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class OnlyOfficeAPIServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficeAPIServlet");
 
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+
     private final JwtManager jwtManager;
     private final DocumentManager documentManager;
 
@@ -61,17 +62,26 @@ public class OnlyOfficeAPIServlet extends HttpServlet {
     private final ParsingUtil parsingUtil;
     private final UrlManager urlManager;
     private final ConfigurationManager configurationManager;
+    private final ExecutionManager executionManager;
+    private final ImageManager imageManager;
+    private final DownloadManager downloadManager;
 
     @Inject
-    public OnlyOfficeAPIServlet(JwtManager jwtManager, DocumentManager documentManager,
+    public OnlyOfficeAPIServlet(TransactionTemplate transactionTemplate, JwtManager jwtManager,
+                                DocumentManager documentManager,
                                 AttachmentUtil attachmentUtil, ParsingUtil parsingUtil, UrlManager urlManager,
-                                ConfigurationManager configurationManager) {
+                                ConfigurationManager configurationManager, ExecutionManager executionManager,
+                                ImageManager imageManager, DownloadManager downloadManager) {
+        this.transactionTemplate = transactionTemplate;
         this.jwtManager = jwtManager;
         this.documentManager = documentManager;
         this.attachmentUtil = attachmentUtil;
         this.parsingUtil = parsingUtil;
         this.urlManager = urlManager;
         this.configurationManager = configurationManager;
+        this.executionManager = executionManager;
+        this.imageManager = imageManager;
+        this.downloadManager = downloadManager;
     }
 
     @Override
@@ -81,10 +91,10 @@ public class OnlyOfficeAPIServlet extends HttpServlet {
             switch (type.toLowerCase())
             {
                 case "save-as":
-                    saveAs(request, response);
+                    executionManager.execute("api.save-as", request, response, this::saveAs);
                     break;
                 case "attachment-data":
-                    attachmentData(request, response);
+                    executionManager.execute("api.attachment-data", request, response, this::attachmentData);
                     break;
                 default:
                     response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -126,30 +136,26 @@ public class OnlyOfficeAPIServlet extends HttpServlet {
                 return;
             }
 
-            downloadUrl = urlManager.replaceDocEditorURLToInternal(downloadUrl);
-
-            try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
-                HttpGet httpGet = new HttpGet(downloadUrl);
-
-                try (CloseableHttpResponse httpResponse = httpClient.execute(httpGet)) {
-                    int status = httpResponse.getStatusLine().getStatusCode();
-                    HttpEntity entity = httpResponse.getEntity();
-
-                    if (status == HttpStatus.SC_OK) {
-                        byte[] bytes = IOUtils.toByteArray(entity.getContent());
-                        InputStream inputStream = new ByteArrayInputStream(bytes);
+            // the URL comes from the browser, so it is never resolved against the shared storage
+            byte[] bytes = downloadManager.downloadOverHttp(downloadUrl, null);
+            InputStream inputStream = new ByteArrayInputStream(bytes);
 
-                        log.info("size = " + bytes.length);
+            log.info("size = " + bytes.length);
 
-                        String fileName = documentManager.getCorrectName(title, ext, pageId);
-                        String mimeType = documentManager.getMimeType(fileName);
+            // the handler runs without a session, the name is picked and the attachment created in one transaction
+            transactionTemplate.execute(new TransactionCallback<Object>() {
+                @Override
+                public Object doInTransaction() {
+                    String fileName = documentManager.getCorrectName(title, ext, pageId);
+                    String mimeType = documentManager.getMimeType(fileName);
 
-                        attachmentUtil.createNewAttachment(fileName, mimeType, inputStream, bytes.length, pageId, user);
-                    } else {
-                        throw new HttpException("Document Server returned code " + status);
+                    try {
+                        return attachmentUtil.createNewAttachment(fileName, mimeType, inputStream, bytes.length, pageId, user);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
                 }
-            }
+            });
         } catch (Exception e) {
             throw new IOException(e.getMessage());
         }
@@ -168,37 +174,53 @@ public class OnlyOfficeAPIServlet extends HttpServlet {
 
         try {
             JSONObject bodyJson = new JSONObject(body);
-            JSONArray attachments = bodyJson.getJSONArray("attachments");
-
-            List<Object> responseJson = new ArrayList<>();
-            Gson gson = new Gson();
+            JSONArray attachmentIds = bodyJson.getJSONArray("attachments");
+            String command = bodyJson.has("command") ? bodyJson.getString("command") : null;
+            boolean images = bodyJson.optBoolean("images", false);
 
-            for (int i = 0; i < attachments.length(); i++) {
-                Long attachmentId = attachments.getLong(i);
+            List<Long> ids = new ArrayList<>(attachmentIds.length());
+            for (int i = 0; i < attachmentIds.length(); i++) {
+                ids.add(attachmentIds.getLong(i));
+            }
 
-                if (attachmentUtil.checkAccess(attachmentId, user, false)) {
-                    Map<String, String> data = new HashMap<>();
+            List<JSONObject> items = new ArrayList<>();
+            for (Attachment attachment : attachmentUtil.getPermittedAttachments(ids, user)) {
+                JSONObject data = new JSONObject();
+                if (command != null) {
+                    data.put("command", command);
+                }
+                String fileType = attachment.getFileExtension().trim().toLowerCase();
+                if (images && imageManager.isSupported(fileType)) {
+                    data.put("fileType", imageManager.getTargetType(fileType));
+                    data.put("url", urlManager.getImageUri(attachment));
+                } else {
+                    data.put("fileType", fileType);
+                    data.put("url", urlManager.getFileUri(attachment));
+                }
+                items.add(data);
+            }
 
-                    String fileName = attachmentUtil.getFileName(attachmentId);
-                    String fileType = fileName.substring(fileName.lastIndexOf(".") + 1).trim().toLowerCase();
+            List<String> tokens = jwtManager.jwtEnabled() ? jwtManager.createTokens(items) : null;
 
-                    if (bodyJson.has("command")) {
-                        data.put("command", bodyJson.getString("command"));
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            try (JsonWriter writer = new JsonWriter(response.getWriter())) {
+                writer.beginArray();
+                for (int i = 0; i < items.size(); i++) {
+                    JSONObject data = items.get(i);
+                    writer.beginObject();
+                    if (command != null) {
+                        writer.name("command").value(command);
                     }
-                    data.put("fileType", fileType);
-                    data.put("url", urlManager.getFileUri(attachmentId));
-                    if (jwtManager.jwtEnabled()) {
-                        JSONObject dataJSON = new JSONObject(gson.toJson(data));
-                        data.put("token", jwtManager.createToken(dataJSON));
+                    writer.name("fileType").value(data.getString("fileType"));
+                    writer.name("url").value(data.getString("url"));
+                    if (tokens != null) {
+                        writer.name("token").value(tokens.get(i));
                     }
-
-                    responseJson.add(data);
+                    writer.endObject();
                 }
+                writer.endArray();
             }
-
-            response.setContentType("application/json");
-            PrintWriter writer = response.getWriter();
-            writer.write(gson.toJson(responseJson));
         } catch (Exception e) {
             throw new IOException(e.getMessage());
         }
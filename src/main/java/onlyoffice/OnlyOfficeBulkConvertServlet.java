@@ -0,0 +1,136 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.convert.BulkConversionManager;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.sal.api.user.UserManager;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import javax.inject.Inject;
+
+public class OnlyOfficeBulkConvertServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficeBulkConvertServlet");
+
+    @ComponentImport
+    private final UserManager userManager;
+
+    private final BulkConversionManager bulkConversionManager;
+    private final ConfigurationManager configurationManager;
+
+    @Inject
+    public OnlyOfficeBulkConvertServlet(UserManager userManager, BulkConversionManager bulkConversionManager,
+            ConfigurationManager configurationManager) {
+        this.userManager = userManager;
+        this.bulkConversionManager = bulkConversionManager;
+        this.configurationManager = configurationManager;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!isSystemAdmin(request, response)) {
+            return;
+        }
+
+        try {
+            writeJson(response, bulkConversionManager.getStatus());
+        } catch (Exception e) {
+            writeError(response, e);
+        }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!isSystemAdmin(request, response)) {
+            return;
+        }
+
+        String action = request.getParameter("action");
+
+        try {
+            if ("start".equals(action)) {
+                int parallelism = getIntParameter(request, "parallelism",
+                        (int) configurationManager.getLongProperty("convert.bulk.parallelism", 2));
+                int rate = getIntParameter(request, "rate",
+                        (int) configurationManager.getLongProperty("convert.bulk.rate", 30));
+
+                writeJson(response, bulkConversionManager.start(request.getParameter("scope"),
+                        request.getParameter("key"), parallelism, rate, AuthenticatedUserThreadLocal.get()));
+            } else if ("cancel".equals(action)) {
+                writeJson(response, bulkConversionManager.cancel());
+            } else {
+                throw new IllegalArgumentException("Unknown action " + action);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeError(response, e);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            log.error(e.toString() + "\n" + sw.toString());
+
+            writeError(response, e);
+        }
+    }
+
+    private boolean isSystemAdmin(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String username = userManager.getRemoteUsername(request);
+        if (username == null || !userManager.isSystemAdmin(username)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    private int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        return value != null && !value.isEmpty() ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private void writeJson(HttpServletResponse response, JSONObject json) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(json.toString());
+    }
+
+    private void writeError(HttpServletResponse response, Exception e) throws IOException {
+        if (response.getStatus() < 400) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        response.setContentType("application/json");
+        response.getWriter().write("{\"error\":" + JSONObject.quote(e.getMessage() != null ? e.getMessage() : e.toString()) + "}");
+    }
+}
@@ -30,6 +30,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.configuration.EditorConfigManager;
 import onlyoffice.managers.jwt.JwtManager;
 import onlyoffice.utils.parsing.ParsingUtil;
 import org.apache.commons.httpclient.HttpStatus;
@@ -68,6 +69,7 @@ public class OnlyOfficeConfServlet extends HttpServlet {
 
     private final JwtManager jwtManager;
     private final ConfigurationManager configurationManager;
+    private final EditorConfigManager editorConfigManager;
 
     private final ParsingUtil parsingUtil;
 
@@ -75,11 +77,12 @@ public class OnlyOfficeConfServlet extends HttpServlet {
     @Inject
     public OnlyOfficeConfServlet(UserManager userManager, PluginSettingsFactory pluginSettingsFactory,
                                  JwtManager jwtManager, ConfigurationManager configurationManager,
-                                 ParsingUtil parsingUtil) {
+                                 EditorConfigManager editorConfigManager, ParsingUtil parsingUtil) {
         this.userManager = userManager;
         this.pluginSettingsFactory = pluginSettingsFactory;
         this.jwtManager = jwtManager;
         this.configurationManager = configurationManager;
+        this.editorConfigManager = editorConfigManager;
         this.parsingUtil = parsingUtil;
     }
 
@@ -100,12 +103,15 @@ public class OnlyOfficeConfServlet extends HttpServlet {
 		String confUrl = (String) pluginSettings.get("onlyoffice.confUrl");
         Boolean verifyCertificate = configurationManager.getBooleanPluginSetting("verifyCertificate", false);
         Boolean forceSave = configurationManager.forceSaveEnabled();
+        Boolean pdfViewer = configurationManager.getBooleanPluginSetting("pdfViewer", true);
+        Boolean asyncDownloads = configurationManager.getBooleanPluginSetting("asyncDownloads", false);
         Boolean chat = configurationManager.getBooleanPluginSetting("chat", true);
         Boolean compactHeader = configurationManager.getBooleanPluginSetting("compactHeader", false);
         Boolean feedback = configurationManager.getBooleanPluginSetting("feedback", false);
         Boolean helpMenu = configurationManager.getBooleanPluginSetting("helpMenu", true);
         Boolean toolbarNoTabs = configurationManager.getBooleanPluginSetting("toolbarNoTabs", false);
         String reviewDisplay = configurationManager.getStringPluginSetting("reviewDisplay", "original");
+        String sharedStorage = configurationManager.getStringPluginSetting("sharedStorage", "");
         Boolean demo = configurationManager.demoEnabled();
         Boolean demoAvailable = configurationManager.demoAvailable(true);
         Map<String, Boolean> defaultCustomizableEditingTypes = configurationManager.getCustomizableEditingTypes();
@@ -126,12 +132,15 @@ public class OnlyOfficeConfServlet extends HttpServlet {
         contextMap.put("docserviceJwtSecret", jwtSecret);
         contextMap.put("verifyCertificate", verifyCertificate);
         contextMap.put("forceSave", forceSave);
+        contextMap.put("pdfViewer", pdfViewer);
+        contextMap.put("asyncDownloads", asyncDownloads);
         contextMap.put("chat", chat);
         contextMap.put("compactHeader", compactHeader);
         contextMap.put("feedback", feedback);
         contextMap.put("helpMenu", helpMenu);
         contextMap.put("toolbarNoTabs", toolbarNoTabs);
         contextMap.put("reviewDisplay", reviewDisplay);
+        contextMap.put("sharedStorage", sharedStorage);
         contextMap.put("docserviceDemo", demo);
         contextMap.put("docserviceDemoAvailable", demoAvailable);
         contextMap.put("pathApiUrl", configurationManager.getProperty("files.docservice.url.api"));
@@ -184,24 +193,32 @@ public class OnlyOfficeConfServlet extends HttpServlet {
 
             String confUrl = AppendSlash(jsonObj.getString("confUrl"));
             Boolean forceSave = jsonObj.getBoolean("forceSave");
+            Boolean pdfViewer = jsonObj.optBoolean("pdfViewer", true);
+            Boolean asyncDownloads = jsonObj.optBoolean("asyncDownloads", false);
             Boolean chat = jsonObj.getBoolean("chat");
             Boolean compactHeader = jsonObj.getBoolean("compactHeader");
             Boolean feedback = jsonObj.getBoolean("feedback");
             Boolean helpMenu = jsonObj.getBoolean("helpMenu");
             Boolean toolbarNoTabs = jsonObj.getBoolean("toolbarNoTabs");
             String reviewDisplay = jsonObj.getString("reviewDisplay");
+            String sharedStorage = jsonObj.optString("sharedStorage", "").trim();
             JSONArray editingTypes = jsonObj.getJSONArray("editingTypes");
 
             pluginSettings.put("onlyoffice.confUrl", confUrl);
             pluginSettings.put("onlyoffice.forceSave", forceSave.toString());
+            pluginSettings.put("onlyoffice.pdfViewer", pdfViewer.toString());
+            pluginSettings.put("onlyoffice.asyncDownloads", asyncDownloads.toString());
             pluginSettings.put("onlyoffice.chat", chat.toString());
             pluginSettings.put("onlyoffice.compactHeader", compactHeader.toString());
             pluginSettings.put("onlyoffice.feedback", feedback.toString());
             pluginSettings.put("onlyoffice.helpMenu", helpMenu.toString());
             pluginSettings.put("onlyoffice.toolbarNoTabs", toolbarNoTabs.toString());
             pluginSettings.put("onlyoffice.reviewDisplay", reviewDisplay);
+            pluginSettings.put("onlyoffice.sharedStorage", sharedStorage);
             pluginSettings.put("onlyoffice.editingTypes", editingTypes.toString());
 
+            editorConfigManager.invalidate();
+
         } catch (Exception ex) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
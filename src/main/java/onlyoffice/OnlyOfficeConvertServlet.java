@@ -28,18 +28,18 @@ import javax.servlet.http.HttpServletResponse;
 
 import onlyoffice.managers.configuration.ConfigurationManager;
 import com.atlassian.confluence.pages.PageManager;
+import onlyoffice.managers.convert.ConversionJob;
+import onlyoffice.managers.convert.ConversionJobManager;
 import onlyoffice.managers.convert.ConvertManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.execution.ExecutionManager;
+import onlyoffice.managers.format.FormatManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.metrics.ServerTiming;
 import onlyoffice.utils.attachment.AttachmentUtil;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.atlassian.confluence.pages.Attachment;
@@ -48,6 +48,8 @@ import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
 import com.atlassian.confluence.user.ConfluenceUser;
 import com.atlassian.confluence.renderer.radeox.macros.MacroUtils;
 import com.atlassian.confluence.util.velocity.VelocityUtils;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
 
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import javax.inject.Inject;
@@ -58,32 +60,55 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
 
     @ComponentImport
     private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
 
     private final AttachmentUtil attachmentUtil;
     private final ConvertManager convertManager;
+    private final ConversionJobManager conversionJobManager;
     private final AuthContext authContext;
     private final DocumentManager documentManager;
     private final ConfigurationManager configurationManager;
     private final PageManager pageManager;
+    private final MetricsManager metricsManager;
+    private final ExecutionManager executionManager;
+    private final FormatManager formatManager;
 
     @Inject
-    public OnlyOfficeConvertServlet(AttachmentManager attachmentManager, AttachmentUtil attachmentUtil,
-            ConvertManager convertManager, AuthContext authContext, DocumentManager documentManager,
-            ConfigurationManager configurationManager, PageManager pageManager) {
+    public OnlyOfficeConvertServlet(AttachmentManager attachmentManager, TransactionTemplate transactionTemplate,
+            AttachmentUtil attachmentUtil,
+            ConvertManager convertManager, ConversionJobManager conversionJobManager, AuthContext authContext,
+            DocumentManager documentManager, ConfigurationManager configurationManager, PageManager pageManager,
+            MetricsManager metricsManager, ExecutionManager executionManager,
+            FormatManager formatManager) {
         this.attachmentManager = attachmentManager;
+        this.transactionTemplate = transactionTemplate;
         this.attachmentUtil = attachmentUtil;
         this.convertManager = convertManager;
+        this.conversionJobManager = conversionJobManager;
         this.authContext = authContext;
         this.documentManager = documentManager;
         this.configurationManager = configurationManager;
         this.pageManager = pageManager;
+        this.metricsManager = metricsManager;
+        this.executionManager = executionManager;
+        this.formatManager = formatManager;
     }
 
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        boolean status = "status".equals(request.getParameter("type"));
+        ServerTiming timing = new ServerTiming(status ? "convert.status" : "convert.page");
         if (!authContext.checkUserAuthorisation(request, response)) {
             return;
         }
+        timing.lap("auth");
+
+        if (status) {
+            getStatus(request, response, timing);
+            return;
+        }
+
         String pageIdString = request.getParameter("pageId");
         String newTitle = request.getParameter("newTitle");
 
@@ -91,9 +116,6 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
         Long attachmentId = Long.parseLong(attachmentIdString);
         Attachment attachment = attachmentManager.getAttachment(attachmentId);
 
-        response.setContentType("text/html;charset=UTF-8");
-        PrintWriter writer = response.getWriter();
-
         Map<String, Object> contextMap = MacroUtils.defaultVelocityContext();
         Long pageId = attachment.getContainer().getId();
         String fileName = attachment.getFileName();
@@ -116,7 +138,36 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
         contextMap.put("attachmentId", attachmentIdString);
         contextMap.put("oldName", fileName);
         contextMap.put("newName", newName);
-        writer.write(getTemplate(contextMap));
+        String page = getTemplate(contextMap);
+        timing.lap("render");
+        timing.finish(response, metricsManager);
+
+        response.setContentType("text/html;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(page);
+    }
+
+    private void getStatus(HttpServletRequest request, HttpServletResponse response, ServerTiming timing)
+            throws IOException {
+        ConversionJob job = conversionJobManager.getJob(request.getParameter("jobId"));
+        timing.lap("job");
+        timing.finish(response, metricsManager);
+
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-store");
+        PrintWriter writer = response.getWriter();
+
+        if (job == null || !job.isVisibleTo(AuthenticatedUserThreadLocal.get())) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            writer.write("{\"error\":\"Conversion job not found\"}");
+            return;
+        }
+
+        try {
+            writer.write(job.toJson().toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
     }
 
     private String getTemplate(Map<String, Object> map) throws UnsupportedEncodingException {
@@ -125,12 +176,19 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
 
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        executionManager.execute("convert.submit", request, response, this::submit);
+    }
+
+    private void submit(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServerTiming timing = new ServerTiming("convert.submit");
         if (!authContext.checkUserAuthorisation(request, response)) {
             return;
         }
+        timing.lap("auth");
 
         String attachmentIdString = request.getParameter("attachmentId");
-        ConfluenceUser user = null;
+        String pageIdAsString = request.getParameter("pageId");
+        String newTitle = request.getParameter("newTitle");
         String errorMessage = null;
         JSONObject json = null;
 
@@ -138,46 +196,20 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
             Long attachmentId = Long.parseLong(attachmentIdString);
             log.info("attachmentId " + attachmentId);
 
-            Attachment attachment = attachmentManager.getAttachment(attachmentId);
-
-            user = AuthenticatedUserThreadLocal.get();
+            ConfluenceUser user = AuthenticatedUserThreadLocal.get();
             log.info("user " + user);
 
-            String fileName = attachment.getFileName();
-            String ext = attachment.getFileExtension();
-            String title = fileName.substring(0, fileName.lastIndexOf("."));
-
-            String pageIdAsString = request.getParameter("pageId");
-            String newTitle = request.getParameter("newTitle");
-
-            if (newTitle != null && !newTitle.isEmpty()) title = newTitle;
-
-            Long pageId = null;
-            if (pageIdAsString != null && !pageIdAsString.isEmpty()) {
-                pageId = Long.parseLong(pageIdAsString);
-            } else {
-                pageId = attachment.getContainer().getId();
-            }
-
-            if (attachmentUtil.checkAccess(attachmentId, user, false) && attachmentUtil.checkAccessCreate(user, pageId)) {
-                if (convertManager.isConvertable(ext)) {
-                    String convertToExt = convertManager.convertsTo(ext);
-                    json = convertManager.convert(attachmentId, ext, convertToExt, user);
-
-                    if (json.has("endConvert") && json.getBoolean("endConvert")) {
-                        String newFileName = documentManager.getCorrectName(title, convertToExt, pageId);
-                        Long newAttachmentId = savefile(attachment, json.getString("fileUrl"), newFileName, pageId);
-                        json.put("attachmentId", newAttachmentId);
-                    } else if (json.has("error")) {
-                        errorMessage = "Unknown conversion error";
-                    }
-                } else {
-                    errorMessage = "Files of " + ext + " format cannot be converted";
+            // the job is only queued here, so the lookups and checks share one short transaction
+            ConversionJob job = transactionTemplate.execute(new TransactionCallback<ConversionJob>() {
+                @Override
+                public ConversionJob doInTransaction() {
+                    return submitJob(attachmentId, pageIdAsString, newTitle, user, timing);
                 }
-            } else {
-                log.error("access deny");
-                errorMessage = "You don not have enough permission to convert the file";
-            }
+            });
+            json = job.toJson();
+            timing.lap("submit");
+        } catch (SubmitRefused ex) {
+            errorMessage = ex.getMessage();
         } catch (Exception ex) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
@@ -186,6 +218,7 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
             log.error(error);
             errorMessage = ex.toString();
         }
+        timing.finish(response, metricsManager);
 
         response.setContentType("application/json");
         PrintWriter writer = response.getWriter();
@@ -196,36 +229,44 @@ public class OnlyOfficeConvertServlet extends HttpServlet {
         }
     }
 
-    private Long savefile(Attachment attachment, String fileUrl, String newName, Long pageId) throws Exception {
-        log.info("downloadUri = " + fileUrl);
-
-        try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
-            HttpGet request = new HttpGet(fileUrl);
+    private ConversionJob submitJob(Long attachmentId, String pageIdAsString, String newTitle, ConfluenceUser user,
+            ServerTiming timing) {
+        Attachment attachment = attachmentManager.getAttachment(attachmentId);
 
-            try (CloseableHttpResponse response = httpClient.execute(request)) {
+        String fileName = attachment.getFileName();
+        String ext = attachment.getFileExtension();
+        String title = fileName.substring(0, fileName.lastIndexOf("."));
 
-                int status = response.getStatusLine().getStatusCode();
-                HttpEntity entity = response.getEntity();
+        if (newTitle != null && !newTitle.isEmpty()) title = newTitle;
 
-                if (status == HttpStatus.SC_OK) {
-                    byte[] bytes = IOUtils.toByteArray(entity.getContent());
-                    InputStream inputStream = new ByteArrayInputStream(bytes);
+        Long pageId = null;
+        if (pageIdAsString != null && !pageIdAsString.isEmpty()) {
+            pageId = Long.parseLong(pageIdAsString);
+        } else {
+            pageId = attachment.getContainer().getId();
+        }
 
-                    Attachment copy = attachment.copyLatestVersion();
+        boolean access = attachmentUtil.checkAccess(attachmentId, user, false)
+                && attachmentUtil.checkAccessCreate(user, pageId);
+        timing.lap("access");
 
-                    copy.setContainer(pageManager.getPage(pageId));
-                    copy.setFileName(newName);
-                    copy.setFileSize(bytes.length);
-                    copy.setMediaType(documentManager.getMimeType(newName));
+        if (!access) {
+            log.error("access deny");
+            throw new SubmitRefused("You don not have enough permission to convert the file");
+        }
+        if (!convertManager.isConvertable(ext)) {
+            throw new SubmitRefused("Files of " + ext + " format cannot be converted");
+        }
+        if (formatManager.getFileType(attachment) == null) {
+            throw new SubmitRefused("The file content does not match the " + ext + " format");
+        }
 
-                    attachmentManager.saveAttachment(copy, null, inputStream);
+        return conversionJobManager.submit(attachment, pageId, title, user);
+    }
 
-                    return copy.getLatestVersionId();
-                } else {
-                    throw new HttpException("Document Server returned code " + status);
-                }
-            }
+    private static class SubmitRefused extends RuntimeException {
+        SubmitRefused(String message) {
+            super(message);
         }
     }
-
 }
@@ -26,19 +26,26 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import javax.inject.Inject;
 
 import com.atlassian.plugin.webresource.WebResourceUrlProvider;
 import com.atlassian.plugin.webresource.UrlMode;
 import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.configuration.EditorConfigManager;
 import onlyoffice.managers.convert.ConvertManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.format.FormatManager;
 import onlyoffice.managers.jwt.JwtManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.metrics.ServerTiming;
+import onlyoffice.managers.rendition.RenditionManager;
 import onlyoffice.managers.url.UrlManager;
 import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.atlassian.confluence.renderer.radeox.macros.MacroUtils;
@@ -52,7 +59,7 @@ public class OnlyOfficeEditorServlet extends HttpServlet {
     private final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficeEditorServlet");
     private final long serialVersionUID = 1L;
 
-    private Properties properties;
+    private static final String SHELL_TEMPLATE_DIGEST = digestTemplate();
 
     @ComponentImport
     private final LocaleManager localeManager;
@@ -66,13 +73,18 @@ public class OnlyOfficeEditorServlet extends HttpServlet {
     private final DocumentManager documentManager;
     private final AttachmentUtil attachmentUtil;
     private final ConvertManager convertManager;
-
+    private final RenditionManager renditionManager;
+    private final EditorConfigManager editorConfigManager;
+    private final MetricsManager metricsManager;
+    private final FormatManager formatManager;
 
     @Inject
     public OnlyOfficeEditorServlet(LocaleManager localeManager, WebResourceUrlProvider webResourceUrlProvider,
             UrlManager urlManager, JwtManager jwtManager, ConfigurationManager configurationManager,
             AuthContext authContext, DocumentManager documentManager, AttachmentUtil attachmentUtil,
-            ConvertManager convertManager) {
+            ConvertManager convertManager, RenditionManager renditionManager,
+            EditorConfigManager editorConfigManager, MetricsManager metricsManager,
+            FormatManager formatManager) {
         this.localeManager = localeManager;
         this.webResourceUrlProvider = webResourceUrlProvider;
         this.urlManager = urlManager;
@@ -82,40 +94,35 @@ public class OnlyOfficeEditorServlet extends HttpServlet {
         this.documentManager = documentManager;
         this.attachmentUtil = attachmentUtil;
         this.convertManager = convertManager;
+        this.renditionManager = renditionManager;
+        this.editorConfigManager = editorConfigManager;
+        this.metricsManager = metricsManager;
+        this.formatManager = formatManager;
     }
 
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ServerTiming timing = new ServerTiming("editor");
         if (!authContext.checkUserAuthorisation(request, response)) {
             return;
         }
+        timing.lap("auth");
 
-        String apiUrl = urlManager.getPublicDocEditorUrl();
-        if (apiUrl == null || apiUrl.isEmpty()) {
-            apiUrl = "";
+        if ("config".equals(request.getParameter("type"))) {
+            writeConfig(request, response, timing);
+            return;
         }
 
-        properties = configurationManager.getProperties();
-
-        String type = "";
-        String callbackUrl = "";
-        String fileUrl = "";
-        String gobackUrl = "";
-        String key = "";
-        String fileName = "";
-        String errorMessage = "";
-        ConfluenceUser user = null;
+        ConfluenceUser user = AuthenticatedUserThreadLocal.get();
 
         String attachmentIdString = request.getParameter("attachmentId");
         String actionData = request.getParameter("actionData");
 
         if (attachmentIdString == null) {
-            fileName = request.getParameter("fileName");
+            String fileName = request.getParameter("fileName");
             String fileExt = request.getParameter("fileExt");
             String pageId = request.getParameter("pageId");
             if (pageId != null && !pageId.equals("")) {
-                user = AuthenticatedUserThreadLocal.get();
-
                 if (!attachmentUtil.checkAccessCreate(user, Long.parseLong(pageId))) {
                     response.sendError(HttpServletResponse.SC_FORBIDDEN);
                     return;
@@ -128,27 +135,69 @@ public class OnlyOfficeEditorServlet extends HttpServlet {
             }
         }
 
-        Long attachmentId = null;
-
         try {
-            attachmentId = Long.parseLong(attachmentIdString);
-            log.info("attachmentId " + attachmentId);
+            Long attachmentId = Long.parseLong(attachmentIdString);
+            boolean useViewer = attachmentUtil.checkAccess(attachmentId, user, false)
+                    && shouldUseViewer(request, attachmentId, user, actionData);
+            timing.lap("access");
+
+            if (useViewer) {
+                timing.finish(response, metricsManager);
+                response.sendRedirect(request.getContextPath() + "/plugins/servlet/onlyoffice/viewer?attachmentId="
+                        + attachmentId);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Invalid attachmentId " + attachmentIdString);
+        }
 
-            user = AuthenticatedUserThreadLocal.get();
-            log.info("user " + user);
-            if (attachmentUtil.checkAccess(attachmentId, user, false)) {
-                type = documentManager.getEditorType(request.getHeader("USER-AGENT"));
+        // The shell embeds the user's XSRF token and locale, so it is revalidated on every open
+        // rather than cached for good; an unchanged shell costs a 304 without rendering the template.
+        String etag = getShellEtag(request, user);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, no-cache");
+        timing.lap("etag");
 
-                key = documentManager.getKeyOfFile(attachmentId);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            timing.finish(response, metricsManager);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
-                fileName = attachmentUtil.getFileName(attachmentId);
+        Map<String, Object> defaults = MacroUtils.defaultVelocityContext();
+        defaults.putAll(editorConfigManager.getShellContext());
+        String shell = VelocityUtils.getRenderedTemplate("templates/editor.vm", defaults);
+        timing.lap("render");
+        timing.finish(response, metricsManager);
 
-                fileUrl = urlManager.getFileUri(attachmentId);
+        response.setContentType("text/html;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(shell);
+    }
+
+    private void writeConfig(HttpServletRequest request, HttpServletResponse response, ServerTiming timing)
+            throws IOException {
+        String errorMessage = "";
+        JSONObject payload = new JSONObject();
 
-                gobackUrl = urlManager.getGobackUrl(attachmentId, request);
+        try {
+            Long attachmentId = Long.parseLong(request.getParameter("attachmentId"));
+            log.info("attachmentId " + attachmentId);
 
-                if (attachmentUtil.checkAccess(attachmentId, user, true)) {
-                    callbackUrl = urlManager.getCallbackUrl(attachmentId);
+            ConfluenceUser user = AuthenticatedUserThreadLocal.get();
+            log.info("user " + user);
+            boolean access = attachmentUtil.checkAccess(attachmentId, user, false);
+            timing.lap("access");
+
+            if (access) {
+                // a file whose content is rejected is not opened at all, not even for viewing
+                String fileType = formatManager.getFileType(attachmentUtil.getAttachment(attachmentId));
+                if (fileType != null) {
+                    payload = getConfig(request, attachmentId, fileType, user, timing);
+                } else {
+                    log.warn("Content of attachment " + attachmentId + " does not match its extension");
+                    errorMessage = "The file content does not match the " + attachmentUtil.getFileExt(attachmentId)
+                            + " format";
                 }
             } else {
                 log.error("access deny");
@@ -163,120 +212,146 @@ public class OnlyOfficeEditorServlet extends HttpServlet {
             errorMessage = ex.toString();
         }
 
-        response.setContentType("text/html;charset=UTF-8");
-        PrintWriter writer = response.getWriter();
+        try {
+            payload.put("errorMessage", errorMessage);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
 
-        writer.write(getTemplate(attachmentId, type, apiUrl, callbackUrl, fileUrl, key, fileName, user, gobackUrl,
-                actionData, errorMessage));
+        String json = payload.toString();
+        timing.lap("serialize");
+        timing.finish(response, metricsManager);
+
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(json);
     }
 
-    private String getTemplate(Long attachmentId, String type, String apiUrl, String callbackUrl, String fileUrl, String key, String fileName,
-            ConfluenceUser user, String gobackUrl, String actionData, String errorMessage) throws UnsupportedEncodingException {
-        Map<String, Object> defaults = MacroUtils.defaultVelocityContext();
-        Map<String, String> config = new HashMap<String, String>();
+    private boolean shouldUseViewer(HttpServletRequest request, Long attachmentId, ConfluenceUser user,
+            String actionData) {
+        if ("true".equals(request.getParameter("editor")) || (actionData != null && !actionData.isEmpty())) {
+            return false;
+        }
+
+        if (!configurationManager.getBooleanPluginSetting("pdfViewer", true)) {
+            return false;
+        }
+
+        String ext = attachmentUtil.getFileExt(attachmentId);
+        boolean canEdit = (documentManager.isEditable(ext) || documentManager.isFillForm(ext))
+                && attachmentUtil.checkAccess(attachmentId, user, true);
+
+        return !canEdit && renditionManager.isSupported(ext);
+    }
+
+    private String getShellEtag(HttpServletRequest request, ConfluenceUser user) {
+        HttpSession session = request.getSession(false);
+        String parts = SHELL_TEMPLATE_DIGEST + "|" + editorConfigManager.getRevision()
+                + "|" + (user != null ? user.getName() : "")
+                + "|" + localeManager.getLocale(user).toLanguageTag()
+                + "|" + (session != null ? session.getId() : "");
+        return "\"" + DigestUtils.sha256Hex(parts) + "\"";
+    }
+
+    private JSONObject getConfig(HttpServletRequest request, Long attachmentId, String fileType, ConfluenceUser user,
+            ServerTiming timing) throws Exception {
+        String fileName = attachmentUtil.getFileName(attachmentId);
+        String callbackUrl = "";
+        if (attachmentUtil.checkAccess(attachmentId, user, true)) {
+            callbackUrl = urlManager.getCallbackUrl(attachmentId);
+        }
 
         String docTitle = fileName.trim();
         String docExt = attachmentUtil.getFileExt(attachmentId);
-        boolean canEdit = documentManager.isEditable(docExt) || documentManager.isFillForm(docExt);
+        // a file whose content is another format is only viewed, so it is never saved back under the wrong extension
+        boolean canEdit = fileType.equals(docExt)
+                && (documentManager.isEditable(docExt) || documentManager.isFillForm(docExt));
         String documentType = documentManager.getDocType(docExt);
         Long pageId = attachmentUtil.getAttachmentPageId(attachmentId);
+        String actionData = request.getParameter("actionData");
+        timing.lap("attachment");
 
-        config.put("docserviceApiUrl", apiUrl + properties.getProperty("files.docservice.url.api"));
-        config.put("errorMessage", errorMessage);
-        config.put("docTitle", docTitle);
-        config.put("favicon", webResourceUrlProvider.getStaticPluginResourceUrl(
-                "onlyoffice.onlyoffice-confluence-plugin:onlyoffice-confluence-plugin-resources-editor",
-                documentType +".ico",
-                UrlMode.ABSOLUTE)
-        );
+        String key = documentManager.getKeyOfFile(attachmentId);
+        timing.lap("key");
 
         JSONObject responseJson = new JSONObject();
         JSONObject documentObject = new JSONObject();
         JSONObject editorConfigObject = new JSONObject();
         JSONObject userObject = new JSONObject();
         JSONObject permObject = new JSONObject();
-        JSONObject customizationObject = new JSONObject();
+        JSONObject customizationObject = editorConfigManager.getCustomization();
         JSONObject gobackObject = new JSONObject();
 
-        try {
-            responseJson.put("type", type);
-            responseJson.put("width", "100%");
-            responseJson.put("height", "100%");
-            responseJson.put("documentType", documentType);
-
-            responseJson.put("document", documentObject);
-            documentObject.put("title", docTitle);
-            documentObject.put("url", fileUrl);
-            documentObject.put("fileType", docExt);
-            documentObject.put("key", key);
-            documentObject.put("permissions", permObject);
-            responseJson.put("editorConfig", editorConfigObject);
-
-            if (canEdit && callbackUrl != null && !callbackUrl.isEmpty()) {
-                permObject.put("edit", true);
-                editorConfigObject.put("mode", "edit");
-                editorConfigObject.put("callbackUrl", callbackUrl);
-            } else {
-                permObject.put("edit", false);
-                editorConfigObject.put("mode", "view");
-            }
+        responseJson.put("type", documentManager.getEditorType(request.getHeader("USER-AGENT")));
+        responseJson.put("width", "100%");
+        responseJson.put("height", "100%");
+        responseJson.put("documentType", documentType);
+
+        responseJson.put("document", documentObject);
+        documentObject.put("title", docTitle);
+        documentObject.put("url", urlManager.getFileUri(attachmentId));
+        documentObject.put("fileType", fileType);
+        documentObject.put("key", key);
+        documentObject.put("permissions", permObject);
+        responseJson.put("editorConfig", editorConfigObject);
+
+        if (canEdit && callbackUrl != null && !callbackUrl.isEmpty()) {
+            permObject.put("edit", true);
+            editorConfigObject.put("mode", "edit");
+            editorConfigObject.put("callbackUrl", callbackUrl);
+        } else {
+            permObject.put("edit", false);
+            editorConfigObject.put("mode", "view");
+        }
 
-            if (actionData != null && !actionData.isEmpty()) {
-                editorConfigObject.put("actionLink", new JSONObject(actionData));
-            }
+        if (actionData != null && !actionData.isEmpty()) {
+            editorConfigObject.put("actionLink", new JSONObject(actionData));
+        }
 
-            if (attachmentUtil.checkAccessCreate(user, pageId)) {
-                editorConfigObject.put("createUrl", urlManager.getCreateUri(pageId, docExt));
-            }
+        if (attachmentUtil.checkAccessCreate(user, pageId)) {
+            editorConfigObject.put("createUrl", urlManager.getCreateUri(pageId, docExt));
+        }
 
-            editorConfigObject.put("lang", localeManager.getLocale(user).toLanguageTag());
-            editorConfigObject.put("customization", customizationObject);
-
-            customizationObject.put("forcesave", configurationManager.forceSaveEnabled());
-            customizationObject.put("chat", configurationManager.getBooleanPluginSetting("chat", true));
-            customizationObject.put("compactHeader", configurationManager.getBooleanPluginSetting("compactHeader", false));
-            customizationObject.put("feedback", configurationManager.getBooleanPluginSetting("feedback", false));
-            customizationObject.put("help", configurationManager.getBooleanPluginSetting("helpMenu", true));
-            customizationObject.put("toolbarNoTabs", configurationManager.getBooleanPluginSetting("toolbarNoTabs", false));
-            if (!configurationManager.getStringPluginSetting("reviewDisplay", "original").equals("original")) {
-                customizationObject.put("reviewDisplay", configurationManager.getStringPluginSetting("reviewDisplay", "original"));
-            }
-            customizationObject.put("goback", gobackObject);
-            gobackObject.put("url", gobackUrl);
+        editorConfigObject.put("lang", localeManager.getLocale(user).toLanguageTag());
+        editorConfigObject.put("customization", customizationObject);
 
-            if (user != null) {
-                editorConfigObject.put("user", userObject);
-                userObject.put("id", user.getName());
-                userObject.put("name", user.getFullName());
-            }
+        customizationObject.put("goback", gobackObject);
+        gobackObject.put("url", urlManager.getGobackUrl(attachmentId, request));
 
-            if (jwtManager.jwtEnabled()) {
-                responseJson.put("token", jwtManager.createToken(responseJson));
-            }
+        if (user != null) {
+            editorConfigObject.put("user", userObject);
+            userObject.put("id", user.getName());
+            userObject.put("name", user.getFullName());
+        }
 
-            // AsHtml at the end disables automatic html encoding
-            config.put("jsonAsHtml", responseJson.toString());
-            config.put("pageId", pageId.toString());
-            config.put("pageTitle", attachmentUtil.getAttachmentPageTitle(attachmentId));
-            config.put("spaceKey", attachmentUtil.getAttachmentSpaceKey(attachmentId));
-            config.put("spaceName", attachmentUtil.getAttachmentSpaceName(attachmentId));
-            config.put("historyInfoUriAsHtml", urlManager.getHistoryInfoUri(attachmentId));
-            config.put("historyDataUriAsHtml", urlManager.getHistoryDataUri(attachmentId));
-            config.put("attachmentDataAsHtml", urlManager.getAttachmentDataUri());
-            config.put("saveAsUriAsHtml", urlManager.getSaveAsUri());
-            config.put("insertImageTypesAsHtml", new JSONArray(documentManager.getInsertImageTypes()).toString());
-            config.put("compareFileTypesAsHtml", new JSONArray(documentManager.getCompareFileTypes()).toString());
-            config.put("mailMergeTypesAsHtml", new JSONArray(documentManager.getMailMergeTypes()).toString());
-        } catch (Exception ex) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            ex.printStackTrace(pw);
-            String error = ex.toString() + "\n" + sw.toString();
-            log.error(error);
+        timing.lap("config");
+
+        if (jwtManager.jwtEnabled()) {
+            responseJson.put("token", jwtManager.createToken(responseJson));
         }
+        timing.lap("jwt");
 
-        defaults.putAll(config);
-        defaults.put("demo", configurationManager.demoActive());
-        return VelocityUtils.getRenderedTemplate("templates/editor.vm", defaults);
+        JSONObject payload = new JSONObject();
+        payload.put("config", responseJson);
+        payload.put("docTitle", docTitle);
+        payload.put("favicon", webResourceUrlProvider.getStaticPluginResourceUrl(
+                "onlyoffice.onlyoffice-confluence-plugin:onlyoffice-confluence-plugin-resources-editor",
+                documentType + ".ico",
+                UrlMode.ABSOLUTE));
+        payload.put("pageId", pageId.toString());
+        payload.put("pageTitle", attachmentUtil.getAttachmentPageTitle(attachmentId));
+        payload.put("spaceKey", attachmentUtil.getAttachmentSpaceKey(attachmentId));
+        payload.put("spaceName", attachmentUtil.getAttachmentSpaceName(attachmentId));
+        payload.put("historyInfoUri", urlManager.getHistoryInfoUri(attachmentId));
+        payload.put("historyDataUri", urlManager.getHistoryDataUri(attachmentId));
+        return payload;
+    }
+
+    private static String digestTemplate() {
+        try (InputStream template = OnlyOfficeEditorServlet.class.getClassLoader().getResourceAsStream("templates/editor.vm")) {
+            return template != null ? DigestUtils.sha256Hex(template) : "";
+        } catch (IOException e) {
+            return "";
+        }
     }
 }
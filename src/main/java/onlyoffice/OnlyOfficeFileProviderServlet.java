@@ -18,10 +18,17 @@
 
 package onlyoffice;
 
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.download.DownloadCacheManager;
+import onlyoffice.managers.image.ImageManager;
 import onlyoffice.managers.jwt.JwtManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.save.SaveManager;
 import onlyoffice.managers.url.UrlManager;
 import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.http.ContentResponse;
 import onlyoffice.utils.parsing.ParsingUtil;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -42,15 +49,27 @@ public class OnlyOfficeFileProviderServlet extends HttpServlet {
     private final UrlManager urlManager;
     private final JwtManager jwtManager;
     private final DocumentManager documentManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+    private final DownloadCacheManager downloadCacheManager;
+    private final ImageManager imageManager;
+    private final SaveManager saveManager;
 
     @Inject
     public OnlyOfficeFileProviderServlet(ParsingUtil parsingUtil, AttachmentUtil attachmentUtil, JwtManager jwtManager,
-            UrlManager urlManager, DocumentManager documentManager) {
+            UrlManager urlManager, DocumentManager documentManager, ConfigurationManager configurationManager,
+            MetricsManager metricsManager, DownloadCacheManager downloadCacheManager, ImageManager imageManager,
+            SaveManager saveManager) {
         this.parsingUtil = parsingUtil;
         this.attachmentUtil = attachmentUtil;
         this.jwtManager = jwtManager;
         this.urlManager = urlManager;
         this.documentManager = documentManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+        this.downloadCacheManager = downloadCacheManager;
+        this.imageManager = imageManager;
+        this.saveManager = saveManager;
     }
 
     @Override
@@ -73,20 +92,72 @@ public class OnlyOfficeFileProviderServlet extends HttpServlet {
         log.info("vkey = " + vkey);
         String attachmentIdString = documentManager.readHash(vkey);
 
+        if ("pending".equals(request.getParameter("type"))) {
+            sendPendingSave(attachmentIdString, request, response);
+            return;
+        }
+
         Long attachmentId = Long.parseLong(attachmentIdString);
         log.info("attachmentId " + attachmentId);
 
-        String contentType = attachmentUtil.getMediaType(attachmentId);
-        response.setContentType(contentType);
+        Attachment attachment = attachmentUtil.getAttachment(attachmentId);
+        if (attachment == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String tag = attachmentUtil.getVersionTag(attachment);
+        File image = "image".equals(request.getParameter("type")) ? getImage(attachment) : null;
+        ContentResponse content;
+        ContentResponse.Source source;
+
+        if (image != null) {
+            String imageType = imageManager.getTargetType(attachment.getFileExtension());
+            content = new ContentResponse(imageType.equals("png") ? "image/png" : "image/jpeg", image.length(),
+                    tag + ".image");
+            content.setFile(image);
+            source = () -> new FileInputStream(image);
+        } else {
+            content = new ContentResponse(attachment.getMediaType(), attachment.getFileSize(), tag);
+
+            // the cached stream is opened only when the body is sent, so an answer without a body holds no memory
+            if (!downloadCacheManager.isCached(attachment)) {
+                content.setFile(attachmentUtil.getAttachmentFile(attachment));
+            }
+            source = () -> downloadCacheManager.load(attachment, () -> attachmentUtil.getAttachmentData(attachmentId));
+        }
+
+        // a URL naming an older state of the attachment still works, but must be revalidated
+        if (tag.equals(request.getParameter("ver"))) {
+            content.setCacheControl((jwtManager.jwtEnabled() ? "private, " : "public, ") + ContentResponse.IMMUTABLE);
+        }
+
+        if (configurationManager.getBooleanPluginSetting("asyncDownloads", false)) {
+            content.setAsync(metricsManager);
+        }
+
+        content.send(request, response, source);
+    }
 
-        InputStream inputStream = attachmentUtil.getAttachmentData(attachmentId);
-        response.setContentLength(inputStream.available());
+    private void sendPendingSave(String id, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        File file = saveManager.getPendingFile(id);
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
 
-        byte[] buffer = new byte[10240];
+        ContentResponse content = new ContentResponse("application/octet-stream", file.length(), id);
+        content.setFile(file);
+        content.send(request, response, () -> new FileInputStream(file));
+    }
 
-        OutputStream output = response.getOutputStream();
-        for (int length = 0; (length = inputStream.read(buffer)) > 0;) {
-            output.write(buffer, 0, length);
+    private File getImage(Attachment attachment) {
+        try {
+            return imageManager.getImage(attachment);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't prepare the image of attachment " + attachment.getId() + ", sending the original", e);
+            return null;
         }
     }
 }
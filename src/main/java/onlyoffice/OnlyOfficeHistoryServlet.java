@@ -29,14 +29,19 @@ import com.atlassian.confluence.user.UserAccessor;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.spring.container.ContainerManager;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import onlyoffice.managers.configuration.ConfigurationManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.history.HistoryEntry;
+import onlyoffice.managers.history.HistoryManager;
 import onlyoffice.managers.jwt.JwtManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.metrics.ServerTiming;
 import onlyoffice.managers.url.UrlManager;
 import onlyoffice.utils.attachment.AttachmentUtil;
-import onlyoffice.utils.parsing.ParsingUtil;
+import onlyoffice.utils.http.ContentResponse;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.inject.Inject;
@@ -45,11 +50,15 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 public class OnlyOfficeHistoryServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficeHistoryServlet");
+    private static final int MAX_VERSIONS_PER_REQUEST = 10;
+    private static final Gson gson = new Gson();
 
     @ComponentImport
     private final LocaleManager localeManager;
@@ -61,12 +70,15 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
     private final AttachmentUtil attachmentUtil;
     private final UrlManager urlManager;
     private final JwtManager jwtManager;
-    private final ParsingUtil parsingUtil;
+    private final MetricsManager metricsManager;
+    private final HistoryManager historyManager;
+    private final ConfigurationManager configurationManager;
 
     @Inject
     public OnlyOfficeHistoryServlet(LocaleManager localeManager, FormatSettingsManager formatSettingsManager,
             AuthContext authContext, DocumentManager documentManager, AttachmentUtil attachmentUtil,
-            UrlManager urlManager, JwtManager jwtManager, ParsingUtil parsingUtil) {
+            UrlManager urlManager, JwtManager jwtManager, MetricsManager metricsManager,
+            HistoryManager historyManager, ConfigurationManager configurationManager) {
         this.localeManager = localeManager;
         this.formatSettingsManager = formatSettingsManager;
         this.authContext = authContext;
@@ -74,7 +86,9 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
         this.attachmentUtil = attachmentUtil;
         this.urlManager = urlManager;
         this.jwtManager = jwtManager;
-        this.parsingUtil = parsingUtil;
+        this.metricsManager = metricsManager;
+        this.historyManager = historyManager;
+        this.configurationManager = configurationManager;
     }
 
     @Override
@@ -115,23 +129,26 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
         Attachment diff = attachmentUtil.getAttachmentDiff(attachmentId);
 
         if (diff != null) {
-            InputStream inputStream = attachmentUtil.getAttachmentData(diff.getId());
             String publicDocEditorUrl = urlManager.getPublicDocEditorUrl();
 
             if (publicDocEditorUrl.endsWith("/")) {
                 publicDocEditorUrl = publicDocEditorUrl.substring(0, publicDocEditorUrl.length() - 1);
             }
 
-            response.setContentType(diff.getMediaType());
-            response.setContentLength(inputStream.available());
             response.addHeader("Access-Control-Allow-Origin", publicDocEditorUrl);
 
-            byte[] buffer = new byte[10240];
+            String tag = attachmentUtil.getVersionTag(diff);
+            ContentResponse content = new ContentResponse(diff.getMediaType(), diff.getFileSize(), tag);
+            content.setFile(attachmentUtil.getAttachmentFile(diff));
+            if (tag.equals(request.getParameter("ver"))) {
+                content.setCacheControl("public, " + ContentResponse.IMMUTABLE);
+            }
 
-            OutputStream output = response.getOutputStream();
-            for (int length = 0; (length = inputStream.read(buffer)) > 0; ) {
-                output.write(buffer, 0, length);
+            if (configurationManager.getBooleanPluginSetting("asyncDownloads", false)) {
+                content.setAsync(metricsManager);
             }
+
+            content.send(request, response, () -> attachmentUtil.getAttachmentData(diff.getId()));
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
@@ -139,9 +156,11 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
     }
 
     private void getAttachmentHistoryInfo (HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServerTiming timing = new ServerTiming("history.info");
         if (!authContext.checkUserAuthorisation(request, response)) {
             return;
         }
+        timing.lap("auth");
 
         String vkey = request.getParameter("vkey");
         String attachmentIdString = documentManager.readHash(vkey);
@@ -159,74 +178,123 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
             return;
         }
 
-        List<Attachment> attachments = attachmentUtil.getAllVersions(attachmentId);
-        if (attachments != null) {
+        timing.lap("access");
+
+        List<HistoryEntry> entries = historyManager.getHistory(attachmentId);
+        timing.lap("versions");
+        if (entries != null) {
             UserAccessor userAccessor = (UserAccessor) ContainerManager.getComponent("userAccessor");
             ConfluenceUserPreferences preferences = userAccessor.getConfluenceUserPreferences(user);
             DateFormatter dateFormatter = preferences.getDateFormatter(formatSettingsManager, localeManager);
-            Gson gson = new Gson();
-
-            Attachment prevVersion = null;
-            Collections.reverse(attachments);
-            List<Version> history = new ArrayList<>();
-            for (Attachment attachment : attachments) {
-                Version version = new Version();
-                version.setVersion(attachment.getVersion());
-                version.setKey(documentManager.getKeyOfFile(attachment.getId()));
-                version.setCreated(dateFormatter.formatDateTime(attachment.getCreationDate()));
-                version.setUser(attachment.getCreator().getName(), attachment.getCreator().getFullName());
-
-                Attachment changes = attachmentUtil.getAttachmentChanges(attachment.getId());
-                if (changes != null) {
-                    if (prevVersion != null && (attachment.getVersion() - prevVersion.getVersion()) == 1) {
-                        InputStream changesSteam = attachmentUtil.getAttachmentData(changes.getId());
-                        String changesString = parsingUtil.getBody(changesSteam);
-                        JSONObject changesJSON = null;
-                        try {
-                            changesJSON = new JSONObject(changesString);
-                            version.setServerVersion(changesJSON.getString("serverVersion"));
-                            version.setChanges(gson.fromJson(changesJSON.getString("changes"), Object.class));
-                        } catch (JSONException e) {
-                            throw new IOException(e.getMessage());
-                        }
-                    } else {
-                        attachmentUtil.removeAttachmentChanges(attachment.getId());
-                    }
-                }
-                prevVersion = attachment;
-                history.add(version);
+            String fileType = attachmentUtil.getFileExt(attachmentId);
+            int currentVersion = entries.get(entries.size() - 1).getVersion();
+
+            // the page holds the newest versions older than the cursor, so the editor can show them first
+            int end = entries.size();
+            int before = parseInt(request.getParameter("before"), Integer.MAX_VALUE);
+            while (end > 0 && entries.get(end - 1).getVersion() >= before) {
+                end--;
+            }
+            int limit = parseInt(request.getParameter("limit"), 0);
+            int start = limit > 0 ? Math.max(0, end - limit) : 0;
+
+            Map<Integer, VersionData> versionsData = new LinkedHashMap<>();
+            int prefetch = Math.min(parseInt(request.getParameter("prefetch"), 0), MAX_VERSIONS_PER_REQUEST);
+            for (int i = end - 1; i >= start && versionsData.size() < prefetch; i--) {
+                VersionData versionData = getVersionData(entries, entries.get(i).getVersion(), fileType);
+                versionsData.put(versionData.version, versionData);
             }
+            timing.lap("prefetch");
+            timing.finish(response, metricsManager);
 
-            Map<String, Object> historyInfo = new HashMap<>();
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            try (JsonWriter writer = new JsonWriter(openWriter(request, response))) {
+                writer.beginObject();
+                writer.name("currentVersion").value(currentVersion);
+                if (start > 0) {
+                    writer.name("before").value(entries.get(start).getVersion());
+                }
 
-            historyInfo.put("currentVersion", attachmentUtil.getVersion(attachmentId));
-            historyInfo.put("history", history);
+                writer.name("history").beginArray();
+                for (HistoryEntry entry : entries.subList(start, end)) {
+                    writer.beginObject();
+                    writer.name("version").value(entry.getVersion());
+                    writer.name("key").value(entry.getKey());
+                    writer.name("created").value(dateFormatter.formatDateTime(new Date(entry.getCreated())));
+                    writer.name("user").beginObject()
+                            .name("id").value(entry.getUserId())
+                            .name("name").value(entry.getUserName())
+                            .endObject();
+                    if (entry.getServerVersion() != null) {
+                        writer.name("serverVersion").value(entry.getServerVersion());
+                    }
+                    historyManager.writeChanges(entry, writer);
+                    writer.endObject();
+                }
+                writer.endArray();
 
-            response.setContentType("application/json");
-            PrintWriter writer = response.getWriter();
-            writer.write(gson.toJson(historyInfo));
+                if (!versionsData.isEmpty()) {
+                    writer.name("data");
+                    gson.toJson(versionsData, Map.class, writer);
+                }
+                writer.endObject();
+            }
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
     }
 
+    /**
+     * Compresses the response when the client accepts it; history of heavily edited documents runs to megabytes.
+     */
+    private Writer openWriter(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        response.addHeader("Vary", "Accept-Encoding");
+
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            return new OutputStreamWriter(new GZIPOutputStream(response.getOutputStream(), 8192), StandardCharsets.UTF_8);
+        }
+
+        return new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8), 8192);
+    }
+
+    private int parseInt(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private void getAttachmentHistoryData (HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServerTiming timing = new ServerTiming("history.data");
         if (!authContext.checkUserAuthorisation(request, response)) {
             return;
         }
+        timing.lap("auth");
 
         String vkey = request.getParameter("vkey");
         String attachmentIdString = documentManager.readHash(vkey);
         String versionString = request.getParameter("version");
+        String versionsString = request.getParameter("versions");
 
-        if (attachmentIdString.isEmpty() || versionString == null || versionString.isEmpty()) {
+        if (attachmentIdString.isEmpty() || (versionString == null || versionString.isEmpty())
+                && (versionsString == null || versionsString.isEmpty())) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
+        boolean single = versionString != null && !versionString.isEmpty();
+        int version = single ? parseInt(versionString, 0) : 0;
+        if (single && version <= 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
         Long attachmentId = Long.parseLong(attachmentIdString);
-        int version = Integer.parseInt(versionString);
 
         ConfluenceUser user = AuthenticatedUserThreadLocal.get();
 
@@ -235,98 +303,90 @@ public class OnlyOfficeHistoryServlet extends HttpServlet {
             return;
         }
 
-        List<Attachment> attachments = attachmentUtil.getAllVersions(attachmentId);
-        if (attachments != null) {
-            Gson gson = new Gson();
-            VersionData versionData = null;
-
-            Attachment prevVersion = null;
-            Collections.reverse(attachments);
-            for (Attachment attachment : attachments) {
-                if (attachment.getVersion() == version) {
-                    versionData = new VersionData();
-                    versionData.setVersion(attachment.getVersion());
-                    versionData.setKey(documentManager.getKeyOfFile(attachment.getId()));
-                    versionData.setUrl(urlManager.getFileUri(attachment.getId()));
-                    versionData.setFileType(attachment.getFileExtension());
-
-                    Attachment diff = attachmentUtil.getAttachmentDiff(attachment.getId());
-                    if (prevVersion != null && diff != null) {
-                        boolean adjacentVersions = (attachment.getVersion() - prevVersion.getVersion()) == 1;
-                        if (adjacentVersions) {
-                            versionData.setChangesUrl(urlManager.getAttachmentDiffUri(attachment.getId()));
-                            versionData.setPrevious(documentManager.getKeyOfFile(prevVersion.getId()), urlManager.getFileUri(prevVersion.getId()), prevVersion.getFileExtension());
-                        }
-                    }
-                    break;
-                }
-                prevVersion = attachment;
-            }
-
-            if (versionData != null) {
-                if (jwtManager.jwtEnabled()) {
-                    try {
-                        JSONObject versionDataJSON = new JSONObject(gson.toJson(versionData));
-                        versionData.setToken(jwtManager.createToken(versionDataJSON));
-                    } catch (Exception e) {
-                        throw new IOException(e.getMessage());
-                    }
-                }
+        timing.lap("access");
 
-                response.setContentType("application/json");
-                PrintWriter writer = response.getWriter();
-                writer.write(gson.toJson(versionData));
-            } else {
-                response.sendError(HttpServletResponse.SC_NOT_FOUND);
-                return;
-            }
-        } else {
+        List<HistoryEntry> entries = historyManager.getHistory(attachmentId);
+        timing.lap("versions");
+        if (entries == null) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
-    }
-
-    public class Version {
-        public int version;
-        public String key;
-        public Object changes;
-        public String created;
-        public User user;
-        public String serverVersion;
 
-        public Version() { }
+        String fileType = attachmentUtil.getFileExt(attachmentId);
+        String json;
 
-        public void setVersion(int version) {
-            this.version = version;
-        }
+        if (single) {
+            VersionData versionData = getVersionData(entries, version, fileType);
+            if (versionData == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            json = gson.toJson(versionData);
+        } else {
+            Map<Integer, VersionData> versionsData = new LinkedHashMap<>();
+            for (String item : versionsString.split(",")) {
+                if (versionsData.size() >= MAX_VERSIONS_PER_REQUEST) {
+                    break;
+                }
 
-        public void setKey(String key) {
-            this.key = key;
-        }
+                int itemVersion = parseInt(item.trim(), 0);
+                if (itemVersion <= 0) {
+                    continue;
+                }
 
-        public void setChanges(Object changes) {
-            this.changes = changes;
+                VersionData versionData = getVersionData(entries, itemVersion, fileType);
+                if (versionData != null) {
+                    versionsData.put(versionData.version, versionData);
+                }
+            }
+            json = gson.toJson(versionsData);
         }
 
-        public void setCreated(String created) { this.created = created; }
+        timing.lap("history");
+        timing.finish(response, metricsManager);
 
-        public void setUser(String id, String name) {
-            this.user = new User(id, name);
-        }
+        response.setContentType("application/json");
+        PrintWriter writer = response.getWriter();
+        writer.write(json);
+    }
 
-        public void setServerVersion(String serverVersion) {
-            this.serverVersion = serverVersion;
+    /**
+     * Builds the data of one version from the history index, whose entries are sorted from oldest to newest.
+     */
+    private VersionData getVersionData(List<HistoryEntry> entries, int version, String fileType) throws IOException {
+        VersionData versionData = null;
+
+        HistoryEntry prevVersion = null;
+        for (HistoryEntry entry : entries) {
+            if (entry.getVersion() == version) {
+                versionData = new VersionData();
+                versionData.setVersion(entry.getVersion());
+                versionData.setKey(entry.getKey());
+                versionData.setUrl(urlManager.getFileUri(entry.getAttachmentId()));
+                versionData.setFileType(fileType);
+
+                if (prevVersion != null && entry.getDiffId() != null) {
+                    boolean adjacentVersions = (entry.getVersion() - prevVersion.getVersion()) == 1;
+                    if (adjacentVersions) {
+                        versionData.setChangesUrl(urlManager.getAttachmentDiffUri(entry.getAttachmentId()));
+                        versionData.setPrevious(prevVersion.getKey(), urlManager.getFileUri(prevVersion.getAttachmentId()), fileType);
+                    }
+                }
+                break;
+            }
+            prevVersion = entry;
         }
 
-        public class User {
-            public String id;
-            public String name;
-
-            public User(String id, String name) {
-                this.id = id;
-                this.name = name;
+        if (versionData != null && jwtManager.jwtEnabled()) {
+            try {
+                JSONObject versionDataJSON = new JSONObject(gson.toJson(versionData));
+                versionData.setToken(jwtManager.createToken(versionDataJSON));
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
             }
         }
+
+        return versionData;
     }
 
     public class VersionData {
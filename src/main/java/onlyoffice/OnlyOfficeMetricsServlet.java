@@ -0,0 +1,85 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import onlyoffice.managers.metrics.MetricsManager;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.atlassian.sal.api.user.UserManager;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import javax.inject.Inject;
+
+public class OnlyOfficeMetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @ComponentImport
+    private final UserManager userManager;
+
+    private final MetricsManager metricsManager;
+
+    @Inject
+    public OnlyOfficeMetricsServlet(UserManager userManager, MetricsManager metricsManager) {
+        this.userManager = userManager;
+        this.metricsManager = metricsManager;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String username = userManager.getRemoteUsername(request);
+        if (username == null || !userManager.isSystemAdmin(username)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        JSONObject metrics = new JSONObject();
+        try {
+            JSONObject counters = new JSONObject();
+            for (Map.Entry<String, Long> entry : metricsManager.getCounters().entrySet()) {
+                counters.put(entry.getKey(), entry.getValue());
+            }
+            metrics.put("counters", counters);
+
+            JSONObject timings = new JSONObject();
+            for (Map.Entry<String, Map<String, Long>> entry : metricsManager.getTimings().entrySet()) {
+                timings.put(entry.getKey(), new JSONObject(entry.getValue()));
+            }
+            metrics.put("timings", timings);
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+
+        PrintWriter writer = response.getWriter();
+        writer.write(metrics.toString());
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import onlyoffice.managers.convert.PreConversionManager;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import javax.inject.Inject;
+
+public class OnlyOfficePreConvertServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficePreConvertServlet");
+
+    @ComponentImport
+    private final SpaceManager spaceManager;
+    @ComponentImport
+    private final PermissionManager permissionManager;
+
+    private final PreConversionManager preConversionManager;
+
+    @Inject
+    public OnlyOfficePreConvertServlet(SpaceManager spaceManager, PermissionManager permissionManager,
+            PreConversionManager preConversionManager) {
+        this.spaceManager = spaceManager;
+        this.permissionManager = permissionManager;
+        this.preConversionManager = preConversionManager;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Space space = getAdministeredSpace(request, response);
+        if (space == null) {
+            return;
+        }
+
+        writeState(response, space);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Space space = getAdministeredSpace(request, response);
+        if (space == null) {
+            return;
+        }
+
+        boolean enabled = Boolean.parseBoolean(request.getParameter("enabled"));
+        preConversionManager.setEnabledForSpace(space.getKey(), enabled);
+        log.info("Pre-conversion is " + (enabled ? "enabled" : "disabled") + " for space " + space.getKey());
+
+        writeState(response, space);
+    }
+
+    private Space getAdministeredSpace(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String spaceKey = request.getParameter("spaceKey");
+        Space space = spaceKey != null ? spaceManager.getSpace(spaceKey) : null;
+        if (space == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        ConfluenceUser user = AuthenticatedUserThreadLocal.get();
+        if (user == null || !permissionManager.hasPermission(user, Permission.ADMINISTER, space)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+
+        return space;
+    }
+
+    private void writeState(HttpServletResponse response, Space space) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write("{\"spaceKey\":" + JSONObject.quote(space.getKey()) + ",\"enabled\":"
+                + preConversionManager.isEnabledForSpace(space.getKey()) + "}");
+    }
+}
@@ -19,7 +19,14 @@
 package onlyoffice;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -27,19 +34,17 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import onlyoffice.managers.configuration.ConfigurationManager;
-import onlyoffice.managers.convert.ConvertManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.download.DownloadManager;
+import onlyoffice.managers.execution.ExecutionManager;
 import onlyoffice.managers.jwt.JwtManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.metrics.ServerTiming;
+import onlyoffice.managers.save.SaveManager;
 import onlyoffice.managers.url.UrlManager;
 import onlyoffice.utils.attachment.AttachmentUtil;
 import onlyoffice.utils.parsing.ParsingUtil;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
@@ -63,24 +68,45 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
     private final ParsingUtil parsingUtil;
     private final UrlManager urlManager;
     private final ConfigurationManager configurationManager;
-    private final ConvertManager convertManager;
+    private final MetricsManager metricsManager;
+    private final ExecutionManager executionManager;
+    private final DownloadManager downloadManager;
+    private final SaveManager saveManager;
+
+    private final ExecutorService downloadExecutor = new ThreadPoolExecutor(0, 8, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
 
     @Inject
     public OnlyOfficeSaveFileServlet(JwtManager jwtManager, DocumentManager documentManager,
             AttachmentUtil attachmentUtil, ParsingUtil parsingUtil, UrlManager urlManager,
-            ConfigurationManager configurationManager, ConvertManager convertManager) {
+            ConfigurationManager configurationManager, MetricsManager metricsManager,
+            ExecutionManager executionManager, DownloadManager downloadManager, SaveManager saveManager) {
         this.jwtManager = jwtManager;
         this.documentManager = documentManager;
         this.attachmentUtil = attachmentUtil;
         this.parsingUtil = parsingUtil;
         this.urlManager = urlManager;
         this.configurationManager = configurationManager;
-        this.convertManager = convertManager;
+        this.metricsManager = metricsManager;
+        this.executionManager = executionManager;
+        this.downloadManager = downloadManager;
+        this.saveManager = saveManager;
+    }
+
+    @Override
+    public void destroy() {
+        downloadExecutor.shutdownNow();
+        super.destroy();
     }
 
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        executionManager.execute("save", request, response, this::handleCallback);
+    }
+
+    private void handleCallback(HttpServletRequest request, HttpServletResponse response) throws IOException {
         response.setContentType("text/plain; charset=utf-8");
+        ServerTiming timing = new ServerTiming("save");
 
         String vkey = request.getParameter("vkey");
         log.info("vkey = " + vkey);
@@ -88,10 +114,11 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
 
         String error = "";
         try {
-            processData(attachmentIdString, request);
+            processData(attachmentIdString, request, timing);
         } catch (Exception e) {
             error = e.getMessage();
         }
+        timing.finish(response, metricsManager);
 
         PrintWriter writer = response.getWriter();
         if (error.isEmpty()) {
@@ -104,7 +131,8 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
         log.info("error = " + error);
     }
 
-    private void processData(String attachmentIdString, HttpServletRequest request) throws Exception {
+    private void processData(String attachmentIdString, HttpServletRequest request, ServerTiming timing)
+            throws Exception {
         log.info("attachmentId = " + attachmentIdString);
         InputStream requestStream = request.getInputStream();
         if (attachmentIdString.isEmpty()) {
@@ -121,6 +149,7 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
             }
 
             JSONObject jsonObj = new JSONObject(body);
+            timing.lap("read");
 
             if (jwtManager.jwtEnabled()) {
                 String token = jsonObj.optString("token");
@@ -149,6 +178,7 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
                 } else {
                     jsonObj = bodyFromToken.getJSONObject("payload");
                 }
+                timing.lap("jwt");
             }
 
             long status = jsonObj.getLong("status");
@@ -179,30 +209,8 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
             // MustSave, Corrupted
             if (status == 2 || status == 3) {
                 if (user != null && attachmentUtil.checkAccess(attachmentId, user, true)) {
-                    String downloadUrl = jsonObj.getString("url");
-                    downloadUrl = urlManager.replaceDocEditorURLToInternal(downloadUrl);
-                    log.info("downloadUri = " + downloadUrl);
-
-                    String history = jsonObj.getString("history");
-                    String changesUrl = urlManager.replaceDocEditorURLToInternal(jsonObj.getString("changesurl"));
-                    log.info("changesUri = " + downloadUrl);
-
-                    Boolean forceSaveVersion = attachmentUtil.getPropertyAsBoolean(attachmentId, "onlyoffice-force-save");
-
-                    attachmentUtil.setCollaborativeEditingKey(attachmentId, null);
-
-                    if (forceSaveVersion) {
-                        saveAttachmentFromUrl(attachmentId, downloadUrl, user, false);
-                        attachmentUtil.removeProperty(attachmentId, "onlyoffice-force-save");
-                        attachmentUtil.removeAttachmentChanges(attachmentId);
-
-                        File convertedFile = attachmentUtil.getConvertedFile(attachmentId);
-                        if (convertedFile.exists()) convertedFile.delete();
-                    } else {
-                        saveAttachmentFromUrl(attachmentId, downloadUrl, user, true);
-                    }
-
-                    attachmentUtil.saveAttachmentChanges(attachmentId, history, changesUrl);
+                    timing.lap("access");
+                    saveDocument(attachmentId, jsonObj, user, false, timing);
                 } else {
                     throw new SecurityException("Try save without access: " + user);
                 }
@@ -216,32 +224,8 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
             if (status == 6 || status == 7) {
                 if (user != null && attachmentUtil.checkAccess(attachmentId, user, true)) {
                     if (configurationManager.forceSaveEnabled()) {
-                        String downloadUrl = jsonObj.getString("url");
-                        downloadUrl = urlManager.replaceDocEditorURLToInternal(downloadUrl);
-                        log.info("downloadUri = " + downloadUrl);
-
-                        String history = jsonObj.getString("history");
-                        String changesUrl = urlManager.replaceDocEditorURLToInternal(jsonObj.getString("changesurl"));
-                        log.info("changesUri = " + downloadUrl);
-
-                        Boolean forceSaveVersion = attachmentUtil.getPropertyAsBoolean(attachmentId, "onlyoffice-force-save");
-
-                        if (forceSaveVersion) {
-                            saveAttachmentFromUrl(attachmentId, downloadUrl, user, false);
-                            attachmentUtil.removeAttachmentChanges(attachmentId);
-                        } else {
-                            String key = attachmentUtil.getCollaborativeEditingKey(attachmentId);
-                            attachmentUtil.setCollaborativeEditingKey(attachmentId, null);
-
-                            saveAttachmentFromUrl(attachmentId, downloadUrl, user, true);
-                            attachmentUtil.setCollaborativeEditingKey(attachmentId, key);
-                            attachmentUtil.setProperty(attachmentId, "onlyoffice-force-save", "true");
-                        }
-
-                        attachmentUtil.saveAttachmentChanges(attachmentId, history, changesUrl);
-
-                        File convertedFile = attachmentUtil.getConvertedFile(attachmentId);
-                        if (convertedFile.exists()) convertedFile.delete();
+                        timing.lap("access");
+                        saveDocument(attachmentId, jsonObj, user, true, timing);
                     } else {
                         log.info("Forcesave is disabled, ignoring forcesave request");
                     }
@@ -260,36 +244,65 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
         }
     }
 
-    private void saveAttachmentFromUrl (Long attachmentId, String downloadUrl, ConfluenceUser user, boolean newVersion) throws Exception {
+    private void saveDocument (Long attachmentId, JSONObject jsonObj, ConfluenceUser user, boolean forceSave,
+            ServerTiming timing) throws Exception {
+        String downloadUrl = jsonObj.getString("url");
+        downloadUrl = urlManager.replaceDocEditorURLToInternal(downloadUrl);
+        log.info("downloadUri = " + downloadUrl);
+
+        String history = jsonObj.getString("history");
+        String changesUrl = urlManager.replaceDocEditorURLToInternal(jsonObj.getString("changesurl"));
+        log.info("changesUri = " + changesUrl);
+
         String attachmentExt = attachmentUtil.getFileExt(attachmentId);
         String extDownloadUrl = downloadUrl.substring(downloadUrl.lastIndexOf(".") + 1);
 
+        // the Document Server drops its copy once the callback is answered, so the document is kept before that
+        CallbackData callbackData = getCallbackData(downloadUrl, history, changesUrl);
+        timing.lap("download");
+
         if (!attachmentExt.equals(extDownloadUrl)) {
-            JSONObject response = convertManager.convert(attachmentId, extDownloadUrl, attachmentExt, downloadUrl, null, false);
-            downloadUrl = response.getString("fileUrl");
+            // converting can outlast the callback, the save is stored for the background commit instead
+            log.info("Converting " + attachmentId + " from " + extDownloadUrl + " to " + attachmentExt + " before saving");
+            saveManager.enqueue(attachmentId, user, forceSave, extDownloadUrl, attachmentExt, callbackData.data,
+                    callbackData.history, callbackData.diff);
+            timing.lap("enqueue");
+            return;
         }
 
-        try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
-            HttpGet request = new HttpGet(downloadUrl);
-
-            try (CloseableHttpResponse response = httpClient.execute(request)) {
-                int status = response.getStatusLine().getStatusCode();
-                HttpEntity entity = response.getEntity();
+        saveManager.commit(attachmentId, callbackData.data, callbackData.digest, callbackData.history, callbackData.diff,
+                user, forceSave);
+        timing.lap("commit");
+    }
 
-                if (status == HttpStatus.SC_OK) {
-                    byte[] bytes = IOUtils.toByteArray(entity.getContent());
-                    InputStream inputStream = new ByteArrayInputStream(bytes);
+    private CallbackData getCallbackData (String downloadUrl, String history, String changesUrl) throws Exception {
+        Future<byte[]> changesFuture = downloadExecutor.submit(() -> getChangesData(history, changesUrl));
 
-                    if (newVersion) {
-                        attachmentUtil.saveAttachmentAsNewVersion(attachmentId, inputStream, bytes.length, user);
-                    } else {
-                        attachmentUtil.updateAttachment(attachmentId, inputStream, bytes.length, user);
-                    }
-                } else {
-                    throw new HttpException("Document Server returned code " + status);
-                }
+        try {
+            MessageDigest digest = MessageDigest.getInstance(AttachmentUtil.DIGEST_ALGORITHM);
+
+            CallbackData callbackData = new CallbackData();
+            callbackData.data = downloadManager.download(downloadUrl, digest);
+            callbackData.digest = Hex.encodeHexString(digest.digest());
+            callbackData.history = history;
+            callbackData.diff = changesFuture.get();
+            return callbackData;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
+            throw e;
+        } finally {
+            changesFuture.cancel(true);
+        }
+    }
+
+    private byte[] getChangesData (String history, String changesUrl) throws Exception {
+        if (history == null || history.isEmpty() || changesUrl == null || changesUrl.isEmpty()) {
+            return null;
         }
+
+        return downloadManager.download(changesUrl, null);
     }
 
     private ConfluenceUser getConfluenceUserFromJSON (JSONObject jsonObj) throws JSONException {
@@ -304,4 +317,11 @@ public class OnlyOfficeSaveFileServlet extends HttpServlet {
         }
         return confluenceUser;
     }
+
+    private static class CallbackData {
+        private byte[] data;
+        private String digest;
+        private String history;
+        private byte[] diff;
+    }
 }
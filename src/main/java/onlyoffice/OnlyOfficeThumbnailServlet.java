@@ -0,0 +1,125 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.plugin.webresource.UrlMode;
+import com.atlassian.plugin.webresource.WebResourceUrlProvider;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.thumbnail.ThumbnailManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.io.IOUtils;
+
+import javax.inject.Inject;
+
+/**
+ * Serves first-page thumbnails of office attachments. A thumbnail that is not generated yet is queued
+ * and the document type icon is returned in its place, so pages never wait on a conversion.
+ */
+public class OnlyOfficeThumbnailServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final WebResourceUrlProvider webResourceUrlProvider;
+
+    private final AttachmentUtil attachmentUtil;
+    private final DocumentManager documentManager;
+    private final ThumbnailManager thumbnailManager;
+
+    @Inject
+    public OnlyOfficeThumbnailServlet(AttachmentManager attachmentManager, WebResourceUrlProvider webResourceUrlProvider,
+            AttachmentUtil attachmentUtil, DocumentManager documentManager, ThumbnailManager thumbnailManager) {
+        this.attachmentManager = attachmentManager;
+        this.webResourceUrlProvider = webResourceUrlProvider;
+        this.attachmentUtil = attachmentUtil;
+        this.documentManager = documentManager;
+        this.thumbnailManager = thumbnailManager;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String size = request.getParameter("size");
+        if (size == null || size.isEmpty()) {
+            size = "small";
+        }
+
+        Attachment attachment;
+        try {
+            attachment = attachmentManager.getAttachment(Long.parseLong(request.getParameter("attachmentId")));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (!thumbnailManager.isSize(size)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (attachment == null || !attachmentUtil.checkAccess(attachment, AuthenticatedUserThreadLocal.get(), false)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (!thumbnailManager.isSupported(attachment)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        File thumbnail = thumbnailManager.getThumbnail(attachment, size);
+        if (thumbnail == null) {
+            thumbnailManager.requestThumbnail(attachment, size);
+
+            response.setHeader("Cache-Control", "no-store");
+            response.sendRedirect(webResourceUrlProvider.getStaticPluginResourceUrl(
+                    "onlyoffice.onlyoffice-confluence-plugin:onlyoffice-confluence-plugin-resources-editor",
+                    documentManager.getDocType(attachment.getFileExtension()) + ".ico",
+                    UrlMode.RELATIVE));
+            return;
+        }
+
+        String version = request.getParameter("version");
+        if (version != null && version.equals(attachmentUtil.getVersionTag(attachment))) {
+            response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        } else {
+            response.setHeader("Cache-Control", "private, max-age=300");
+        }
+
+        response.setContentType("image/png");
+        response.setContentLengthLong(thumbnail.length());
+        try (InputStream data = new FileInputStream(thumbnail)) {
+            IOUtils.copy(data, response.getOutputStream());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice;
+
+import java.io.*;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.rendition.RenditionManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.renderer.radeox.macros.MacroUtils;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.util.GeneralUtil;
+import com.atlassian.confluence.util.velocity.VelocityUtils;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import javax.inject.Inject;
+
+public class OnlyOfficeViewerServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LogManager.getLogger("onlyoffice.OnlyOfficeViewerServlet");
+
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+
+    private final AuthContext authContext;
+    private final AttachmentUtil attachmentUtil;
+    private final DocumentManager documentManager;
+    private final RenditionManager renditionManager;
+
+    @Inject
+    public OnlyOfficeViewerServlet(AttachmentManager attachmentManager, AuthContext authContext,
+            AttachmentUtil attachmentUtil, DocumentManager documentManager, RenditionManager renditionManager) {
+        this.attachmentManager = attachmentManager;
+        this.authContext = authContext;
+        this.attachmentUtil = attachmentUtil;
+        this.documentManager = documentManager;
+        this.renditionManager = renditionManager;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!authContext.checkUserAuthorisation(request, response)) {
+            return;
+        }
+
+        Attachment attachment;
+        try {
+            attachment = attachmentManager.getAttachment(Long.parseLong(request.getParameter("attachmentId")));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        ConfluenceUser user = AuthenticatedUserThreadLocal.get();
+        if (attachment == null || !attachmentUtil.checkAccess(attachment, user, false)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        String type = request.getParameter("type");
+        if ("pdf".equals(type)) {
+            writePdf(request, response, attachment);
+        } else if ("status".equals(type)) {
+            writeStatus(response, attachment);
+        } else {
+            writeViewer(request, response, attachment, user);
+        }
+    }
+
+    private void writePdf(HttpServletRequest request, HttpServletResponse response, Attachment attachment)
+            throws IOException {
+        File rendition = null;
+        if (!isPdf(attachment)) {
+            rendition = renditionManager.getRendition(attachment);
+            if (rendition == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        }
+
+        String version = request.getParameter("version");
+        if (version != null && version.equals(attachmentUtil.getVersionTag(attachment))) {
+            response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        } else {
+            response.setHeader("Cache-Control", "private, no-cache");
+        }
+
+        response.setContentType("application/pdf");
+        response.setHeader("Content-Disposition", "inline; filename*=UTF-8''"
+                + GeneralUtil.urlEncode(getTitle(attachment) + ".pdf").replace("+", "%20"));
+
+        if (rendition != null) {
+            response.setContentLengthLong(rendition.length());
+            try (InputStream data = new FileInputStream(rendition)) {
+                IOUtils.copyLarge(data, response.getOutputStream());
+            }
+        } else {
+            response.setContentLengthLong(attachment.getFileSize());
+            try (InputStream data = attachmentManager.getAttachmentData(attachment)) {
+                IOUtils.copyLarge(data, response.getOutputStream());
+            }
+        }
+    }
+
+    private void writeStatus(HttpServletResponse response, Attachment attachment) throws IOException {
+        boolean ready = isPdf(attachment) || renditionManager.getRendition(attachment) != null;
+        boolean failed = !ready && renditionManager.isFailed(attachment);
+
+        if (!ready && !failed) {
+            renditionManager.requestRendition(attachment);
+        }
+
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write("{\"ready\":" + ready + ",\"error\":" + failed + "}");
+    }
+
+    private void writeViewer(HttpServletRequest request, HttpServletResponse response, Attachment attachment,
+            ConfluenceUser user) throws IOException {
+        String ext = attachment.getFileExtension();
+        if (!isPdf(attachment) && !renditionManager.isSupported(ext)) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+
+        String viewerUrl = request.getContextPath() + "/plugins/servlet/onlyoffice/viewer?attachmentId=" + attachment.getId();
+        boolean canEdit = (documentManager.isEditable(ext) || documentManager.isFillForm(ext))
+                && attachmentUtil.checkAccess(attachment, user, true);
+
+        Map<String, Object> contextMap = MacroUtils.defaultVelocityContext();
+        contextMap.put("docTitle", attachment.getFileName());
+        contextMap.put("pdfUrl", viewerUrl + "&type=pdf&version=" + attachmentUtil.getVersionTag(attachment));
+        contextMap.put("statusUrl", viewerUrl + "&type=status");
+        contextMap.put("editorUrl", request.getContextPath() + "/plugins/servlet/onlyoffice/doceditor?attachmentId="
+                + attachment.getId() + "&editor=true");
+        contextMap.put("canEdit", canEdit);
+        contextMap.put("embedded", "true".equals(request.getParameter("embedded")));
+
+        response.setContentType("text/html;charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(VelocityUtils.getRenderedTemplate("templates/viewer.vm", contextMap));
+    }
+
+    private boolean isPdf(Attachment attachment) {
+        return "pdf".equalsIgnoreCase(attachment.getFileExtension());
+    }
+
+    private String getTitle(Attachment attachment) {
+        String fileName = attachment.getFileName();
+        int dot = fileName.lastIndexOf(".");
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+}
@@ -56,10 +56,7 @@ public class IsOfficeFileAttachment implements Condition {
 
     public boolean shouldDisplay(Map<String, Object> context) {
         Attachment attachment = (Attachment) context.get("attachment");
-        if (attachment == null) {
-            return false;
-        }
-        if (attachment.getFileSize() > documentManager.getMaxFileSize()) {
+        if (attachment == null || !isOfficeFile(attachment, documentManager)) {
             return false;
         }
 
@@ -83,4 +80,16 @@ public class IsOfficeFileAttachment implements Condition {
 
         return false;
     }
+
+    /**
+     * The checks of the condition that depend on the file alone: the size limit and a format the editors open.
+     */
+    public static boolean isOfficeFile(Attachment attachment, DocumentManager documentManager) {
+        if (attachment.getFileSize() > documentManager.getMaxFileSize()) {
+            return false;
+        }
+
+        String ext = attachment.getFileExtension();
+        return documentManager.isViewable(ext) || documentManager.isEditable(ext) || documentManager.isFillForm(ext);
+    }
 }
@@ -0,0 +1,61 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.extractor;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.plugins.index.api.Extractor2;
+import com.atlassian.confluence.plugins.index.api.FieldDescriptor;
+import onlyoffice.managers.extraction.TextExtractionManager;
+
+import javax.inject.Inject;
+
+/**
+ * Adds the text extracted by ONLYOFFICE to the index document of an attachment version.
+ */
+public class OnlyOfficeTextExtractor implements Extractor2 {
+    private final TextExtractionManager textExtractionManager;
+
+    @Inject
+    public OnlyOfficeTextExtractor(TextExtractionManager textExtractionManager) {
+        this.textExtractionManager = textExtractionManager;
+    }
+
+    @Override
+    public StringBuilder extractText(Object searchable) {
+        StringBuilder text = new StringBuilder();
+        if (searchable instanceof Attachment) {
+            Attachment attachment = (Attachment) searchable;
+            if (textExtractionManager.isSupported(attachment.getFileExtension())) {
+                String extracted = textExtractionManager.getText(attachment);
+                if (extracted != null) {
+                    text.append(extracted);
+                }
+            }
+        }
+        return text;
+    }
+
+    @Override
+    public Collection<FieldDescriptor> extractFields(Object searchable) {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.macro;
+
+import java.util.Map;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.Macro;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.util.GeneralUtil;
+import onlyoffice.managers.rendition.RenditionManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+
+import javax.inject.Inject;
+
+/**
+ * Embeds an attachment of the current page as a PDF rendition. The iframe is loaded lazily,
+ * so pages with many embedded files only fetch the ones scrolled into view.
+ */
+public class OnlyOfficeViewerMacro implements Macro {
+    private static final String DEFAULT_WIDTH = "100%";
+    private static final String DEFAULT_HEIGHT = "600px";
+
+    private final AttachmentUtil attachmentUtil;
+    private final RenditionManager renditionManager;
+    private final UrlManager urlManager;
+
+    @Inject
+    public OnlyOfficeViewerMacro(AttachmentUtil attachmentUtil, RenditionManager renditionManager, UrlManager urlManager) {
+        this.attachmentUtil = attachmentUtil;
+        this.renditionManager = renditionManager;
+        this.urlManager = urlManager;
+    }
+
+    @Override
+    public String execute(Map<String, String> parameters, String body, ConversionContext context)
+            throws MacroExecutionException {
+        String name = parameters.get("name");
+        ContentEntityObject entity = context.getEntity();
+        if (name == null || name.isEmpty() || entity == null) {
+            throw new MacroExecutionException("Attachment is not specified");
+        }
+
+        Attachment attachment = entity.getAttachmentNamed(name);
+        if (attachment == null) {
+            throw new MacroExecutionException("Attachment " + name + " is not found on this page");
+        }
+
+        if (!attachmentUtil.checkAccess(attachment, AuthenticatedUserThreadLocal.get(), false)) {
+            return "";
+        }
+
+        String ext = attachment.getFileExtension();
+        if (!"pdf".equalsIgnoreCase(ext) && !renditionManager.isSupported(ext)) {
+            throw new MacroExecutionException("Attachment " + name + " cannot be displayed");
+        }
+
+        String src = urlManager.getViewerUri(attachment.getId()) + "&embedded=true";
+
+        return "<iframe loading=\"lazy\" src=\"" + GeneralUtil.htmlEncode(src) + "\""
+                + " title=\"" + GeneralUtil.htmlEncode(attachment.getFileName()) + "\""
+                + " width=\"" + GeneralUtil.htmlEncode(getSize(parameters.get("width"), DEFAULT_WIDTH)) + "\""
+                + " height=\"" + GeneralUtil.htmlEncode(getSize(parameters.get("height"), DEFAULT_HEIGHT)) + "\""
+                + " style=\"border: 1px solid #dfe1e6;\"></iframe>";
+    }
+
+    @Override
+    public BodyType getBodyType() {
+        return BodyType.NONE;
+    }
+
+    @Override
+    public OutputType getOutputType() {
+        return OutputType.BLOCK;
+    }
+
+    private String getSize(String value, String defaultValue) {
+        if (value == null || !value.trim().matches("\\d+(px|%)?")) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+}
@@ -2,6 +2,7 @@ package onlyoffice.managers.configuration;
 
 import org.apache.http.impl.client.CloseableHttpClient;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
@@ -11,6 +12,8 @@ import java.util.Properties;
 public interface ConfigurationManager extends Serializable {
     public Properties getProperties() throws IOException;
     public String getProperty(String propertyName);
+    public long getLongProperty(String propertyName, long defaultValue);
+    public File getStorageDirectory(String name);
     public boolean forceSaveEnabled();
     public boolean selectDemo(Boolean demo);
     public Boolean demoEnabled();
@@ -18,6 +18,7 @@
 
 package onlyoffice.managers.configuration;
 
+import com.atlassian.confluence.setup.BootstrapManager;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
@@ -51,6 +52,8 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
 
     @ComponentImport
     private final PluginSettingsFactory pluginSettingsFactory;
+    @ComponentImport
+    private final BootstrapManager bootstrapManager;
     private final PluginSettings pluginSettings;
 
     private final String configurationPath = "onlyoffice-config.properties";
@@ -59,8 +62,9 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
     private Map<String, String> demoData;
 
     @Inject
-    public ConfigurationManagerImpl(PluginSettingsFactory pluginSettingsFactory) {
+    public ConfigurationManagerImpl(PluginSettingsFactory pluginSettingsFactory, BootstrapManager bootstrapManager) {
         this.pluginSettingsFactory = pluginSettingsFactory;
+        this.bootstrapManager = bootstrapManager;
         pluginSettings = pluginSettingsFactory.createGlobalSettings();
 
         demoData = new HashMap<String, String>();
@@ -93,6 +97,23 @@ public class ConfigurationManagerImpl implements ConfigurationManager {
         }
     }
 
+    public long getLongProperty(String propertyName, long defaultValue) {
+        String value = getProperty(propertyName);
+        try {
+            return value != null ? Long.parseLong(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value of " + propertyName + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the directory under shared home where the plugin keeps the named cache or store.
+     */
+    public File getStorageDirectory(String name) {
+        return new File(bootstrapManager.getSharedHome(), "onlyoffice" + File.separator + name);
+    }
+
     public boolean forceSaveEnabled() {
         String forceSave = (String) pluginSettings.get("onlyoffice.forceSave");
         if (forceSave == null || forceSave.isEmpty()) {
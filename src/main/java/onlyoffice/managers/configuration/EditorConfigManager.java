@@ -0,0 +1,13 @@
+package onlyoffice.managers.configuration;
+
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.Map;
+
+public interface EditorConfigManager extends Serializable {
+    public String getRevision();
+    public JSONObject getCustomization();
+    public Map<String, Object> getShellContext();
+    public void invalidate();
+}
@@ -0,0 +1,156 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.url.UrlManager;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Keeps the document-independent part of the editor configuration precomputed.
+ *
+ * The configuration page bumps a revision stored in the plugin settings whenever it saves, so every node
+ * of a cluster notices the change on its next editor request and rebuilds its copy. The revision also
+ * identifies the editor shell for HTTP revalidation.
+ */
+@Named
+@Default
+public class EditorConfigManagerImpl implements EditorConfigManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.configuration.EditorConfigManager");
+
+    private static final String REVISION_SETTING = "onlyoffice.editorConfigRevision";
+
+    @ComponentImport
+    private final PluginSettingsFactory pluginSettingsFactory;
+
+    private final ConfigurationManager configurationManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final PluginSettings pluginSettings;
+
+    private volatile Snapshot snapshot;
+
+    @Inject
+    public EditorConfigManagerImpl(PluginSettingsFactory pluginSettingsFactory,
+            ConfigurationManager configurationManager, DocumentManager documentManager, UrlManager urlManager) {
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.configurationManager = configurationManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        pluginSettings = pluginSettingsFactory.createGlobalSettings();
+    }
+
+    public String getRevision() {
+        return getSnapshot().revision;
+    }
+
+    public JSONObject getCustomization() {
+        try {
+            return new JSONObject(getSnapshot().customization);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Map<String, Object> getShellContext() {
+        return getSnapshot().shellContext;
+    }
+
+    public void invalidate() {
+        pluginSettings.put(REVISION_SETTING, UUID.randomUUID().toString());
+        snapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        String revision = (String) pluginSettings.get(REVISION_SETTING);
+        if (revision == null) {
+            revision = "0";
+        }
+        revision = revision + (configurationManager.demoActive() ? "-demo" : "");
+
+        Snapshot current = snapshot;
+        if (current == null || !current.revision.equals(revision)) {
+            current = build(revision);
+            snapshot = current;
+            log.debug("Editor configuration is rebuilt for revision " + revision);
+        }
+        return current;
+    }
+
+    private Snapshot build(String revision) {
+        try {
+            JSONObject customization = new JSONObject();
+            customization.put("forcesave", configurationManager.forceSaveEnabled());
+            customization.put("chat", configurationManager.getBooleanPluginSetting("chat", true));
+            customization.put("compactHeader", configurationManager.getBooleanPluginSetting("compactHeader", false));
+            customization.put("feedback", configurationManager.getBooleanPluginSetting("feedback", false));
+            customization.put("help", configurationManager.getBooleanPluginSetting("helpMenu", true));
+            customization.put("toolbarNoTabs", configurationManager.getBooleanPluginSetting("toolbarNoTabs", false));
+            if (!configurationManager.getStringPluginSetting("reviewDisplay", "original").equals("original")) {
+                customization.put("reviewDisplay", configurationManager.getStringPluginSetting("reviewDisplay", "original"));
+            }
+
+            String apiUrl = urlManager.getPublicDocEditorUrl();
+            if (apiUrl == null || apiUrl.isEmpty()) {
+                apiUrl = "";
+            }
+
+            Map<String, Object> shellContext = new HashMap<String, Object>();
+            shellContext.put("docserviceApiUrl", apiUrl + configurationManager.getProperties().getProperty("files.docservice.url.api"));
+            shellContext.put("attachmentDataAsHtml", urlManager.getAttachmentDataUri());
+            shellContext.put("saveAsUriAsHtml", urlManager.getSaveAsUri());
+            shellContext.put("insertImageTypesAsHtml", new JSONArray(documentManager.getInsertImageTypes()).toString());
+            shellContext.put("compareFileTypesAsHtml", new JSONArray(documentManager.getCompareFileTypes()).toString());
+            shellContext.put("mailMergeTypesAsHtml", new JSONArray(documentManager.getMailMergeTypes()).toString());
+            shellContext.put("demo", configurationManager.demoActive());
+
+            return new Snapshot(revision, customization.toString(), Collections.unmodifiableMap(shellContext));
+        } catch (Exception e) {
+            throw new IllegalStateException("Editor configuration cannot be built", e);
+        }
+    }
+
+    private static class Snapshot {
+        private final String revision;
+        private final String customization;
+        private final Map<String, Object> shellContext;
+
+        private Snapshot(String revision, String customization, Map<String, Object> shellContext) {
+            this.revision = revision;
+            this.customization = customization;
+            this.shellContext = shellContext;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package onlyoffice.managers.convert;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+
+public interface BulkConversionManager extends Serializable {
+    public JSONObject start(String scope, String key, int parallelism, int rate, ConfluenceUser user) throws Exception;
+    public JSONObject cancel() throws Exception;
+    public JSONObject getStatus() throws Exception;
+}
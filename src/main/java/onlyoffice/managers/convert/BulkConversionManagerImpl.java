@@ -0,0 +1,664 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.confluence.languages.LocaleManager;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.Page;
+import com.atlassian.confluence.pages.PageManager;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.format.FormatManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUpdate;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Converts legacy attachments of a page, a space or the whole site to Office Open XML.
+ *
+ * The job state is kept in the global plugin settings and is only changed under a cluster lock,
+ * so every node takes part: each node claims a chunk of pages, converts it and reports back.
+ * Chunks are ranges of page ids after a cursor, so pages created or removed while the job runs
+ * do not shift the chunks other nodes have claimed.
+ * Claims that are not refreshed within the lease are taken over by another node, which is also
+ * how a job resumes after a restart. Converted sources are marked with a property, so a chunk
+ * that is processed twice does not produce duplicates.
+ */
+@Named
+@Default
+public class BulkConversionManagerImpl implements BulkConversionManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.convert.BulkConversionManager");
+
+    private static final String STATE_KEY = "onlyoffice.bulkConvert";
+    private static final String LOCK_NAME = "onlyoffice.bulkConvert";
+    private static final String CONVERTED_TO = "onlyoffice-converted-to";
+
+    private static final String RUNNING = "running";
+    private static final String CANCELLED = "cancelled";
+    private static final String FINISHED = "finished";
+
+    @ComponentImport
+    private final ClusterLockService clusterLockService;
+    @ComponentImport
+    private final PluginSettingsFactory pluginSettingsFactory;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+    @ComponentImport
+    private final PageManager pageManager;
+    @ComponentImport
+    private final SpaceManager spaceManager;
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final UserAccessor userAccessor;
+    @ComponentImport
+    private final LocaleManager localeManager;
+
+    private final ConvertManager convertManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final AttachmentUtil attachmentUtil;
+    private final ConfigurationManager configurationManager;
+    private final FormatManager formatManager;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final Map<String, List<Long>> pageIds = new ConcurrentHashMap<>();
+    private volatile String pageIdsJobId;
+    private long nextStart;
+
+    @Inject
+    public BulkConversionManagerImpl(ClusterLockService clusterLockService, PluginSettingsFactory pluginSettingsFactory,
+            TransactionTemplate transactionTemplate, PageManager pageManager, SpaceManager spaceManager,
+            AttachmentManager attachmentManager, UserAccessor userAccessor, LocaleManager localeManager,
+            ConvertManager convertManager, DocumentManager documentManager, UrlManager urlManager,
+            AttachmentUtil attachmentUtil, ConfigurationManager configurationManager,
+            FormatManager formatManager) {
+        this.clusterLockService = clusterLockService;
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.transactionTemplate = transactionTemplate;
+        this.pageManager = pageManager;
+        this.spaceManager = spaceManager;
+        this.attachmentManager = attachmentManager;
+        this.userAccessor = userAccessor;
+        this.localeManager = localeManager;
+        this.convertManager = convertManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.attachmentUtil = attachmentUtil;
+        this.configurationManager = configurationManager;
+        this.formatManager = formatManager;
+
+        workers.allowCoreThreadTimeOut(true);
+
+        long interval = configurationManager.getLongProperty("convert.bulk.interval", 15);
+        scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public JSONObject start(String scope, String key, int parallelism, int rate, ConfluenceUser user) throws Exception {
+        JSONArray units = new JSONArray();
+
+        if ("page".equals(scope)) {
+            Page page = pageManager.getPage(Long.parseLong(key));
+            if (page == null) {
+                throw new IllegalArgumentException("Page " + key + " does not exist");
+            }
+            units.put("#" + page.getId());
+        } else if ("space".equals(scope)) {
+            Space space = spaceManager.getSpace(key);
+            if (space == null) {
+                throw new IllegalArgumentException("Space " + key + " does not exist");
+            }
+            units.put(space.getKey());
+        } else if ("site".equals(scope)) {
+            List<Space> spaces = new ArrayList<>(spaceManager.getAllSpaces());
+            spaces.sort(Comparator.comparing(Space::getKey));
+            for (Space space : spaces) {
+                units.put(space.getKey());
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown scope " + scope);
+        }
+
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            JSONObject state = readState();
+            if (state != null && RUNNING.equals(state.getString("status"))) {
+                throw new IllegalStateException("Bulk conversion " + state.getString("id") + " is already running");
+            }
+
+            long now = System.currentTimeMillis();
+
+            state = new JSONObject();
+            state.put("id", UUID.randomUUID().toString());
+            state.put("scope", scope);
+            state.put("key", key != null ? key : "");
+            state.put("user", user.getName());
+            state.put("status", RUNNING);
+            state.put("parallelism", Math.max(1, Math.min(parallelism, 16)));
+            state.put("rate", Math.max(1, rate));
+            state.put("units", units);
+            state.put("unit", 0);
+            state.put("cursor", 0);
+            state.put("claims", new JSONObject());
+            state.put("pages", 0);
+            state.put("converted", 0);
+            state.put("skipped", 0);
+            state.put("failed", 0);
+            state.put("started", now);
+            state.put("updated", now);
+            writeState(state);
+
+            log.info("Bulk conversion " + state.getString("id") + " of " + scope + " " + key + " is started by " + user.getName());
+            return toStatus(state);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public JSONObject cancel() throws Exception {
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            JSONObject state = readState();
+            if (state != null && RUNNING.equals(state.getString("status"))) {
+                state.put("status", CANCELLED);
+                state.put("updated", System.currentTimeMillis());
+                writeState(state);
+                log.info("Bulk conversion " + state.getString("id") + " is cancelled");
+            }
+            return toStatus(state);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public JSONObject getStatus() throws Exception {
+        return toStatus(readState());
+    }
+
+    private void run() {
+        try {
+            Chunk chunk;
+            while ((chunk = claim()) != null) {
+                process(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            log.error("Bulk conversion failed on this node", e);
+        }
+    }
+
+    private Chunk claim() throws Exception {
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            return inTransaction(() -> {
+                JSONObject state = readState();
+                if (state == null || !RUNNING.equals(state.getString("status"))) {
+                    return null;
+                }
+
+                long now = System.currentTimeMillis();
+                long lease = configurationManager.getLongProperty("convert.bulk.lease", 900) * 1000;
+                JSONArray units = state.getJSONArray("units");
+                JSONObject claims = state.getJSONObject("claims");
+
+                Iterator<?> names = claims.keys();
+                while (names.hasNext()) {
+                    String name = (String) names.next();
+                    JSONObject claim = claims.getJSONObject(name);
+                    if (claim.getLong("time") + lease < now) {
+                        log.info("Taking over chunk " + name + " of bulk conversion " + state.getString("id"));
+                        claim.put("node", nodeId);
+                        claim.put("time", now);
+                        writeState(state);
+
+                        String[] position = name.split(":");
+                        int unit = Integer.parseInt(position[0]);
+                        List<Long> chunkPageIds = getPageIds(state, units.getString(unit),
+                                Long.parseLong(position[1]), Long.parseLong(position[2]), Integer.MAX_VALUE);
+                        return createChunk(state, name, chunkPageIds);
+                    }
+                }
+
+                int chunkSize = (int) configurationManager.getLongProperty("convert.bulk.chunk", 20);
+                int unit = state.getInt("unit");
+                long cursor = state.optLong("cursor", 0);
+
+                while (unit < units.length()) {
+                    List<Long> chunkPageIds = getPageIds(state, units.getString(unit), cursor, Long.MAX_VALUE, chunkSize);
+                    if (!chunkPageIds.isEmpty()) {
+                        long last = chunkPageIds.get(chunkPageIds.size() - 1);
+                        String name = unit + ":" + cursor + ":" + last;
+
+                        JSONObject claim = new JSONObject();
+                        claim.put("node", nodeId);
+                        claim.put("time", now);
+                        claims.put(name, claim);
+
+                        state.put("unit", unit);
+                        state.put("cursor", last);
+                        writeState(state);
+
+                        return createChunk(state, name, chunkPageIds);
+                    }
+                    unit++;
+                    cursor = 0;
+                }
+
+                state.put("unit", unit);
+                state.put("cursor", 0);
+                if (claims.length() == 0) {
+                    state.put("status", FINISHED);
+                    state.put("updated", now);
+                    log.info("Bulk conversion " + state.getString("id") + " is finished");
+                }
+                writeState(state);
+
+                return null;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Chunk createChunk(JSONObject state, String name, List<Long> chunkPageIds) throws Exception {
+        Chunk chunk = new Chunk();
+        chunk.jobId = state.getString("id");
+        chunk.name = name;
+        chunk.user = state.getString("user");
+        chunk.parallelism = state.getInt("parallelism");
+        chunk.rate = state.getInt("rate");
+        chunk.pageIds = chunkPageIds;
+        return chunk;
+    }
+
+    /**
+     * Returns up to limit ids of the unit's pages that are greater than after and not greater than last.
+     */
+    private List<Long> getPageIds(JSONObject state, String unit, long after, long last, int limit) throws Exception {
+        List<Long> ids = getUnitPageIds(state, unit);
+
+        int index = Collections.binarySearch(ids, after);
+        index = index >= 0 ? index + 1 : -index - 1;
+
+        List<Long> result = new ArrayList<>();
+        while (index < ids.size() && result.size() < limit && ids.get(index) <= last) {
+            result.add(ids.get(index++));
+        }
+        return result;
+    }
+
+    private List<Long> getUnitPageIds(JSONObject state, String unit) throws Exception {
+        String jobId = state.getString("id");
+        if (!jobId.equals(pageIdsJobId)) {
+            pageIds.clear();
+            pageIdsJobId = jobId;
+        }
+
+        List<Long> ids = pageIds.get(unit);
+        if (ids == null) {
+            ids = new ArrayList<>();
+            if (unit.startsWith("#")) {
+                ids.add(Long.parseLong(unit.substring(1)));
+            } else {
+                Space space = spaceManager.getSpace(unit);
+                if (space != null) {
+                    // only the ids are loaded, the pages themselves are read chunk by chunk
+                    ids.addAll(pageManager.getPageIds(space));
+                    Collections.sort(ids);
+                }
+            }
+            pageIds.put(unit, ids);
+        }
+        return ids;
+    }
+
+    private void process(Chunk chunk) throws Exception {
+        AtomicInteger converted = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ConfluenceUser user = inTransaction(() -> userAccessor.getUserByName(chunk.user));
+        String region = localeManager.getLocale(user).toLanguageTag();
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (Long pageId : chunk.pageIds) {
+            candidates.addAll(inTransaction(() -> getCandidates(pageId, skipped)));
+        }
+
+        resizeWorkers(chunk.parallelism);
+
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (Candidate candidate : candidates) {
+                futures.add(workers.submit(() -> {
+                    try {
+                        if (!isRunning(chunk.jobId)) {
+                            return;
+                        }
+                        if (convert(candidate, user, region, chunk.rate)) {
+                            converted.incrementAndGet();
+                        } else {
+                            skipped.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        log.error("Bulk conversion of attachment " + candidate.attachmentId + " failed", e);
+                        failed.incrementAndGet();
+                    }
+
+                    try {
+                        touch(chunk);
+                    } catch (Exception e) {
+                        log.warn("Could not refresh the claim of chunk " + chunk.name, e);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        complete(chunk, converted.get(), skipped.get(), failed.get());
+    }
+
+    private void resizeWorkers(int size) {
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    private List<Candidate> getCandidates(Long pageId, AtomicInteger skipped) throws IOException {
+        List<Candidate> candidates = new ArrayList<>();
+
+        Page page = pageManager.getPage(pageId);
+        if (page == null) {
+            return candidates;
+        }
+
+        for (Attachment attachment : attachmentManager.getLatestVersionsOfAttachments(page)) {
+            String fileName = attachment.getFileName();
+            int dot = fileName.lastIndexOf(".");
+            if (attachment.isHidden() || dot < 0) {
+                continue;
+            }
+
+            String ext = fileName.substring(dot + 1).trim().toLowerCase();
+            if (!convertManager.isLegacyFormat(ext)) {
+                continue;
+            }
+
+            if (attachment.getProperties().getStringProperty(CONVERTED_TO) != null) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            String fileType = formatManager.getFileType(attachment);
+            if (fileType == null) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            Candidate candidate = new Candidate();
+            candidate.attachmentId = attachment.getId();
+            candidate.pageId = pageId;
+            candidate.title = fileName.substring(0, dot);
+            candidate.ext = fileType;
+            candidate.convertToExt = convertManager.convertsTo(ext);
+            candidate.version = attachment.getVersion();
+            candidate.digest = attachmentUtil.getContentDigest(attachment);
+            candidate.key = documentManager.getKeyOfFile(attachment.getId());
+            candidate.url = urlManager.getFileUri(attachment.getId());
+            candidates.add(candidate);
+        }
+
+        return candidates;
+    }
+
+    private boolean convert(Candidate candidate, ConfluenceUser user, String region, int rate) throws Exception {
+        byte[] bytes;
+        if (candidate.ext.equals(candidate.convertToExt)) {
+            // the content is in the target format already, it is only saved under the new name
+            try (InputStream inputStream = attachmentUtil.getAttachmentData(candidate.attachmentId)) {
+                bytes = IOUtils.toByteArray(inputStream);
+            }
+        } else {
+            acquire(rate);
+            bytes = convertManager.convertAndDownload(candidate.digest, candidate.key, candidate.ext,
+                    candidate.convertToExt, candidate.url, region, candidate.attachmentId, candidate.version);
+        }
+
+        return inTransaction(() -> {
+            AuthenticatedUserThreadLocal.set(user);
+            try {
+                Attachment source = attachmentManager.getAttachment(candidate.attachmentId);
+                if (source == null || source.getProperties().getStringProperty(CONVERTED_TO) != null) {
+                    return false;
+                }
+
+                String newName = documentManager.getCorrectName(candidate.title, candidate.convertToExt, candidate.pageId);
+                Attachment result = attachmentUtil.createNewAttachment(newName, documentManager.getMimeType(newName),
+                        new ByteArrayInputStream(bytes), bytes.length, candidate.pageId, user);
+
+                AttachmentUpdate update = attachmentUtil.createUpdate(candidate.attachmentId);
+                update.setProperty(CONVERTED_TO, Long.toString(result.getId()));
+                attachmentUtil.commitUpdate(update);
+
+                log.info("Attachment " + candidate.attachmentId + " is converted to " + result.getId());
+                return true;
+            } finally {
+                AuthenticatedUserThreadLocal.reset();
+            }
+        });
+    }
+
+    private void acquire(int rate) throws InterruptedException {
+        long interval = 60000L / Math.max(rate, 1);
+        long wait;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long start = Math.max(nextStart, now);
+            nextStart = start + interval;
+            wait = start - now;
+        }
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private boolean isRunning(String jobId) throws Exception {
+        return inTransaction(() -> {
+            JSONObject state = readState();
+            return state != null && jobId.equals(state.getString("id")) && RUNNING.equals(state.getString("status"));
+        });
+    }
+
+    private void touch(Chunk chunk) throws Exception {
+        updateState(chunk, state -> {
+            JSONObject claim = state.getJSONObject("claims").optJSONObject(chunk.name);
+            if (claim != null && nodeId.equals(claim.optString("node"))) {
+                claim.put("time", System.currentTimeMillis());
+            }
+        });
+    }
+
+    private void complete(Chunk chunk, int converted, int skipped, int failed) throws Exception {
+        updateState(chunk, state -> {
+            state.getJSONObject("claims").remove(chunk.name);
+            state.put("pages", state.getLong("pages") + chunk.pageIds.size());
+            state.put("converted", state.getLong("converted") + converted);
+            state.put("skipped", state.getLong("skipped") + skipped);
+            state.put("failed", state.getLong("failed") + failed);
+            state.put("updated", System.currentTimeMillis());
+        });
+    }
+
+    private void updateState(Chunk chunk, StateChange change) throws Exception {
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            inTransaction(() -> {
+                JSONObject state = readState();
+                if (state != null && chunk.jobId.equals(state.getString("id"))) {
+                    change.apply(state);
+                    writeState(state);
+                }
+                return null;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private JSONObject toStatus(JSONObject state) throws Exception {
+        if (state == null) {
+            return new JSONObject();
+        }
+
+        JSONObject status = new JSONObject(state.toString());
+        status.put("units", state.getJSONArray("units").length());
+        status.put("claims", state.getJSONObject("claims").length());
+        return status;
+    }
+
+    private JSONObject readState() throws Exception {
+        String value = (String) pluginSettingsFactory.createGlobalSettings().get(STATE_KEY);
+        return value != null ? new JSONObject(value) : null;
+    }
+
+    private void writeState(JSONObject state) {
+        pluginSettingsFactory.createGlobalSettings().put(STATE_KEY, state.toString());
+    }
+
+    private <T> T inTransaction(Callable<T> callable) throws Exception {
+        try {
+            return transactionTemplate.execute(new TransactionCallback<T>() {
+                @Override
+                public T doInTransaction() {
+                    try {
+                        return callable.call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new TransactionFailure(e);
+                    }
+                }
+            });
+        } catch (TransactionFailure e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private interface StateChange {
+        void apply(JSONObject state) throws Exception;
+    }
+
+    private static class TransactionFailure extends RuntimeException {
+        TransactionFailure(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static class Chunk {
+        private String jobId;
+        private String name;
+        private String user;
+        private int parallelism;
+        private int rate;
+        private List<Long> pageIds;
+    }
+
+    private static class Candidate {
+        private Long attachmentId;
+        private Long pageId;
+        private String title;
+        private String ext;
+        private String convertToExt;
+        private int version;
+        private String digest;
+        private String key;
+        private String url;
+    }
+}
@@ -0,0 +1,10 @@
+package onlyoffice.managers.convert;
+
+import java.io.Serializable;
+
+public interface ConversionCacheManager extends Serializable {
+    public boolean contains(String digest, String currentExt, String convertToExt);
+    public byte[] get(String digest, String currentExt, String convertToExt, Long attachmentId, int version);
+    public void put(String digest, String currentExt, String convertToExt, byte[] data, Long attachmentId, int version);
+    public void collectGarbage();
+}
@@ -0,0 +1,225 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.utils.cache.FileCache;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Keeps ConvertService results under shared home, keyed by the digest of the source and both formats.
+ * Every entry lists the attachment versions it was produced or served for; the periodic collection
+ * drops entries whose attachments have all been deleted or superseded by a newer version.
+ */
+@Named
+@Default
+public class ConversionCacheManagerImpl implements ConversionCacheManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.convert.ConversionCacheManager");
+
+    private static final String LOCK_NAME = "onlyoffice.conversionCache.gc";
+    private static final long GRACE_PERIOD = 3600 * 1000;
+
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+    @ComponentImport
+    private final ClusterLockService clusterLockService;
+
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final FileCache cache;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @Inject
+    public ConversionCacheManagerImpl(AttachmentManager attachmentManager, TransactionTemplate transactionTemplate,
+            ClusterLockService clusterLockService, ConfigurationManager configurationManager, MetricsManager metricsManager) {
+        this.attachmentManager = attachmentManager;
+        this.transactionTemplate = transactionTemplate;
+        this.clusterLockService = clusterLockService;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        File directory = configurationManager.getStorageDirectory("conversion-cache");
+        cache = new FileCache(directory, configurationManager.getLongProperty("convert.cache.size", 1073741824L));
+
+        long interval = configurationManager.getLongProperty("convert.cache.gc.interval", 24);
+        scheduler.scheduleWithFixedDelay(this::collectGarbage, interval, interval, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    public boolean contains(String digest, String currentExt, String convertToExt) {
+        return cache.isEnabled() && digest != null && cache.get(getName(digest, currentExt, convertToExt)) != null;
+    }
+
+    public byte[] get(String digest, String currentExt, String convertToExt, Long attachmentId, int version) {
+        if (!cache.isEnabled() || digest == null) {
+            return null;
+        }
+
+        String name = getName(digest, currentExt, convertToExt);
+        File file = cache.get(name);
+
+        if (file != null) {
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                if (attachmentId != null) {
+                    addReference(name, attachmentId, version);
+                }
+
+                metricsManager.increment("convert.cache.hit");
+                return data;
+            } catch (IOException e) {
+                log.warn("Could not read cached conversion " + name, e);
+            }
+        }
+
+        metricsManager.increment("convert.cache.miss");
+        return null;
+    }
+
+    public void put(String digest, String currentExt, String convertToExt, byte[] data, Long attachmentId, int version) {
+        if (!cache.isEnabled() || digest == null) {
+            return;
+        }
+
+        String name = getName(digest, currentExt, convertToExt);
+        try {
+            cache.put(name, new ByteArrayInputStream(data));
+
+            Properties meta = cache.getMeta(name);
+            meta.setProperty("created", Long.toString(System.currentTimeMillis()));
+            cache.setMeta(name, meta);
+
+            if (attachmentId != null) {
+                addReference(name, attachmentId, version);
+            }
+        } catch (IOException e) {
+            log.warn("Could not store conversion " + name + " in the cache", e);
+        }
+    }
+
+    public void collectGarbage() {
+        if (!cache.isEnabled()) {
+            return;
+        }
+
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_NAME);
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            int removed = 0;
+            long now = System.currentTimeMillis();
+
+            for (String name : cache.list()) {
+                Properties meta = cache.getMeta(name);
+                String refs = meta.getProperty("refs", "");
+                long created = Long.parseLong(meta.getProperty("created", "0"));
+
+                List<String> liveRefs = (List<String>) transactionTemplate.execute(new TransactionCallback() {
+                    @Override
+                    public Object doInTransaction() {
+                        return getLiveReferences(refs);
+                    }
+                });
+
+                if (liveRefs.isEmpty()) {
+                    if (created + GRACE_PERIOD < now) {
+                        cache.remove(name);
+                        removed++;
+                    }
+                } else if (liveRefs.size() < refs.split(",").length) {
+                    meta.setProperty("refs", String.join(",", liveRefs));
+                    cache.setMeta(name, meta);
+                }
+            }
+
+            cache.evict();
+            log.info("Conversion cache collection removed " + removed + " entries");
+        } catch (Exception e) {
+            log.error("Conversion cache collection failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> getLiveReferences(String refs) {
+        List<String> liveRefs = new ArrayList<>();
+        for (String ref : refs.split(",")) {
+            String[] parts = ref.split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+
+            Attachment attachment = attachmentManager.getAttachment(Long.parseLong(parts[0]));
+            if (attachment != null && attachment.getVersion() == Integer.parseInt(parts[1])) {
+                liveRefs.add(ref);
+            }
+        }
+        return liveRefs;
+    }
+
+    private synchronized void addReference(String name, Long attachmentId, int version) throws IOException {
+        Properties meta = cache.getMeta(name);
+        String refs = meta.getProperty("refs", "");
+        String ref = attachmentId + ":" + version;
+
+        if (!Arrays.asList(refs.split(",")).contains(ref)) {
+            meta.setProperty("refs", refs.isEmpty() ? ref : refs + "," + ref);
+            cache.setMeta(name, meta);
+        }
+    }
+
+    private String getName(String digest, String currentExt, String convertToExt) {
+        return digest + "-" + currentExt.replaceAll("[^A-Za-z0-9]", "") + "." + convertToExt.replaceAll("[^A-Za-z0-9]", "");
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.convert;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * State of one conversion started from the convert page. The job is polled by
+ * {@link ConversionJobManager}; clients only read the state through {@link #toJson()}.
+ */
+public class ConversionJob {
+    private final String id = UUID.randomUUID().toString();
+    private final String dedupKey;
+    private final Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    final Long attachmentId;
+    final Long pageId;
+    final String title;
+    final String key;
+    final String currentExt;
+    final String convertToExt;
+    final String url;
+    final String region;
+    final ConfluenceUser user;
+
+    long delay;
+    long deadline;
+    String digest;
+    int version;
+
+    private volatile int percent;
+    private volatile boolean endConvert;
+    private volatile Long resultAttachmentId;
+    private volatile String error;
+    private volatile long finished;
+
+    ConversionJob(String dedupKey, Long attachmentId, Long pageId, String title, String key, String currentExt,
+            String convertToExt, String url, String region, ConfluenceUser user) {
+        this.dedupKey = dedupKey;
+        this.attachmentId = attachmentId;
+        this.pageId = pageId;
+        this.title = title;
+        this.key = key;
+        this.currentExt = currentExt;
+        this.convertToExt = convertToExt;
+        this.url = url;
+        this.region = region;
+        this.user = user;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    String getDedupKey() {
+        return dedupKey;
+    }
+
+    void addUser(ConfluenceUser user) {
+        users.add(user.getName());
+    }
+
+    public boolean isVisibleTo(ConfluenceUser user) {
+        return user != null && users.contains(user.getName());
+    }
+
+    public boolean isFinished() {
+        return finished > 0;
+    }
+
+    long getFinished() {
+        return finished;
+    }
+
+    void setPercent(int percent) {
+        this.percent = percent;
+    }
+
+    void complete(Long resultAttachmentId) {
+        this.resultAttachmentId = resultAttachmentId;
+        this.percent = 100;
+        this.endConvert = true;
+        this.finished = System.currentTimeMillis();
+    }
+
+    void fail(String error) {
+        this.error = error;
+        this.finished = System.currentTimeMillis();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("jobId", id);
+        json.put("percent", percent);
+        json.put("endConvert", endConvert);
+        if (resultAttachmentId != null) {
+            json.put("attachmentId", resultAttachmentId);
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+}
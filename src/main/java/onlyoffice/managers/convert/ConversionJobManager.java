@@ -0,0 +1,11 @@
+package onlyoffice.managers.convert;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.user.ConfluenceUser;
+
+import java.io.Serializable;
+
+public interface ConversionJobManager extends Serializable {
+    public ConversionJob submit(Attachment attachment, Long pageId, String title, ConfluenceUser user);
+    public ConversionJob getJob(String jobId);
+}
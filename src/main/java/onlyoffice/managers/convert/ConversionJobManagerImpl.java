@@ -0,0 +1,286 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.languages.LocaleManager;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.PageManager;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.download.DownloadManager;
+import onlyoffice.managers.format.FormatManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+@Named
+@Default
+public class ConversionJobManagerImpl implements ConversionJobManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.convert.ConversionJobManager");
+
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final PageManager pageManager;
+    @ComponentImport
+    private final LocaleManager localeManager;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConvertManager convertManager;
+    private final ConversionCacheManager conversionCacheManager;
+    private final AttachmentUtil attachmentUtil;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final ConfigurationManager configurationManager;
+    private final DownloadManager downloadManager;
+    private final FormatManager formatManager;
+
+    private final Map<String, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private final Map<String, ConversionJob> activeJobs = new ConcurrentHashMap<>();
+    // polls ConvertService only; reading the source digest, downloading results and saving them run on the workers
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ExecutorService workers = Executors.newFixedThreadPool(2);
+
+    @Inject
+    public ConversionJobManagerImpl(AttachmentManager attachmentManager, PageManager pageManager,
+            LocaleManager localeManager, TransactionTemplate transactionTemplate, ConvertManager convertManager,
+            ConversionCacheManager conversionCacheManager, AttachmentUtil attachmentUtil,
+            DocumentManager documentManager, UrlManager urlManager, ConfigurationManager configurationManager,
+            DownloadManager downloadManager,
+            FormatManager formatManager) {
+        this.attachmentManager = attachmentManager;
+        this.pageManager = pageManager;
+        this.localeManager = localeManager;
+        this.transactionTemplate = transactionTemplate;
+        this.convertManager = convertManager;
+        this.conversionCacheManager = conversionCacheManager;
+        this.attachmentUtil = attachmentUtil;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.configurationManager = configurationManager;
+        this.downloadManager = downloadManager;
+        this.formatManager = formatManager;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public ConversionJob submit(Attachment attachment, Long pageId, String title, ConfluenceUser user) {
+        Long attachmentId = attachment.getId();
+        String fileType = formatManager.getFileType(attachment);
+        String ext = fileType != null ? fileType : attachment.getFileExtension();
+        String convertToExt = convertManager.convertsTo(attachment.getFileExtension());
+        String dedupKey = attachmentId + ":" + convertToExt + ":" + pageId + ":" + title;
+
+        ConversionJob job;
+        boolean created = false;
+
+        synchronized (activeJobs) {
+            job = activeJobs.get(dedupKey);
+            if (job == null) {
+                job = new ConversionJob(dedupKey, attachmentId, pageId, title, documentManager.getKeyOfFile(attachmentId),
+                        ext, convertToExt, urlManager.getFileUri(attachmentId),
+                        localeManager.getLocale(user).toLanguageTag(), user);
+                job.delay = configurationManager.getLongProperty("convert.poll.delay.initial", 500);
+                job.deadline = System.currentTimeMillis() + configurationManager.getLongProperty("convert.timeout", 300) * 1000;
+
+                activeJobs.put(dedupKey, job);
+                jobs.put(job.getId(), job);
+                created = true;
+            }
+            job.addUser(user);
+        }
+
+        if (created) {
+            ConversionJob newJob = job;
+            workers.execute(() -> start(newJob));
+            log.info("Conversion job " + job.getId() + " of " + attachmentId + " to " + convertToExt + " is started");
+        } else {
+            log.info("Conversion of " + attachmentId + " to " + convertToExt + " joined job " + job.getId());
+        }
+
+        return job;
+    }
+
+    public ConversionJob getJob(String jobId) {
+        return jobId != null ? jobs.get(jobId) : null;
+    }
+
+    private void start(ConversionJob job) {
+        try {
+            transactionTemplate.execute(new TransactionCallback() {
+                @Override
+                public Object doInTransaction() {
+                    Attachment attachment = attachmentManager.getAttachment(job.attachmentId);
+                    job.version = attachment.getVersion();
+                    try {
+                        job.digest = attachmentUtil.getContentDigest(attachment);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }
+            });
+
+            // content already in the target format, such as a workbook saved as .xls, only needs the new name
+            if (job.currentExt.equals(job.convertToExt)) {
+                job.complete(save(job, readData(job.attachmentId)));
+                finish(job, null);
+                return;
+            }
+
+            byte[] cached = conversionCacheManager.get(job.digest, job.currentExt, job.convertToExt,
+                    job.attachmentId, job.version);
+            if (cached != null) {
+                job.complete(save(job, cached));
+                finish(job, null);
+                return;
+            }
+        } catch (Exception e) {
+            log.error("Conversion job " + job.getId() + " failed", e);
+            finish(job, e.toString());
+            return;
+        }
+
+        scheduler.execute(() -> poll(job));
+    }
+
+    private void poll(ConversionJob job) {
+        try {
+            JSONObject response = convertManager.convert(job.key, job.currentExt, job.convertToExt, job.url, job.region, true);
+
+            if (response.has("error")) {
+                finish(job, "ConvertService returned error " + response.get("error"));
+                return;
+            }
+
+            if (response.optBoolean("endConvert")) {
+                String fileUrl = response.getString("fileUrl");
+                workers.execute(() -> complete(job, fileUrl));
+                return;
+            }
+
+            job.setPercent(response.optInt("percent"));
+
+            long delay = job.delay;
+            if (System.currentTimeMillis() + delay > job.deadline) {
+                finish(job, "Conversion did not finish in time");
+                return;
+            }
+
+            job.delay = Math.min(delay * 2, configurationManager.getLongProperty("convert.poll.delay.max", 8000));
+            scheduler.schedule(() -> poll(job), delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Conversion job " + job.getId() + " failed", e);
+            finish(job, e.toString());
+        }
+    }
+
+    private void complete(ConversionJob job, String fileUrl) {
+        try {
+            log.info("downloadUri = " + fileUrl);
+            byte[] bytes = downloadManager.download(fileUrl);
+
+            conversionCacheManager.put(job.digest, job.currentExt, job.convertToExt, bytes, job.attachmentId, job.version);
+            job.complete(save(job, bytes));
+            finish(job, null);
+        } catch (Exception e) {
+            log.error("Conversion job " + job.getId() + " failed", e);
+            finish(job, e.toString());
+        }
+    }
+
+    private void finish(ConversionJob job, String error) {
+        if (error != null) {
+            job.fail(error);
+        }
+
+        activeJobs.remove(job.getDedupKey(), job);
+
+        long retention = configurationManager.getLongProperty("convert.job.retention", 600);
+        scheduler.schedule(() -> jobs.remove(job.getId()), retention, TimeUnit.SECONDS);
+    }
+
+    private byte[] readData(Long attachmentId) throws IOException {
+        try (InputStream inputStream = attachmentUtil.getAttachmentData(attachmentId)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    private Long save(ConversionJob job, byte[] bytes) throws Exception {
+        try {
+            return (Long) transactionTemplate.execute(new TransactionCallback() {
+                @Override
+                public Object doInTransaction() {
+                    AuthenticatedUserThreadLocal.set(job.user);
+                    try {
+                        Attachment attachment = attachmentManager.getAttachment(job.attachmentId);
+                        String newName = documentManager.getCorrectName(job.title, job.convertToExt, job.pageId);
+
+                        Attachment copy = attachment.copyLatestVersion();
+
+                        copy.setContainer(pageManager.getPage(job.pageId));
+                        copy.setFileName(newName);
+                        copy.setFileSize(bytes.length);
+                        copy.setMediaType(documentManager.getMimeType(newName));
+
+                        attachmentManager.saveAttachment(copy, null, new ByteArrayInputStream(bytes));
+
+                        return copy.getLatestVersionId();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        AuthenticatedUserThreadLocal.reset();
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
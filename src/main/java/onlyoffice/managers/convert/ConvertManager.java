@@ -8,6 +8,12 @@ import java.io.Serializable;
 public interface ConvertManager extends Serializable {
     public boolean isConvertable(String ext);
     public String convertsTo(String ext);
+    public boolean isLegacyFormat(String ext);
     public JSONObject convert(Long attachmentId, String ext, String convertToExt, ConfluenceUser user) throws Exception;
     public JSONObject convert(Long attachmentId, String currentExt, String convertToExt, String url, String region, boolean async) throws Exception;
+    public JSONObject convert(String key, String currentExt, String convertToExt, String url, String region, boolean async) throws Exception;
+    public JSONObject convertAndWait(String key, String currentExt, String convertToExt, String url, String region) throws Exception;
+    public byte[] convertAndDownload(String digest, String key, String currentExt, String convertToExt, String url, String region,
+            Long attachmentId, int version) throws Exception;
+    public byte[] createThumbnail(String key, String currentExt, String url, int width, int height) throws Exception;
 }
@@ -22,13 +22,16 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 import com.atlassian.confluence.languages.LocaleManager;
 import com.atlassian.confluence.user.ConfluenceUser;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import onlyoffice.managers.configuration.ConfigurationManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.download.DownloadManager;
 import onlyoffice.managers.jwt.JwtManager;
+import onlyoffice.managers.metrics.MetricsManager;
 import onlyoffice.managers.url.UrlManager;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpException;
@@ -58,16 +61,24 @@ public class ConvertManagerImpl implements ConvertManager {
     private final JwtManager jwtManager;
     private final ConfigurationManager configurationManager;
     private final DocumentManager documentManager;
+    private final ConversionCacheManager conversionCacheManager;
+    private final MetricsManager metricsManager;
+    private final DownloadManager downloadManager;
 
     @Inject
     public ConvertManagerImpl(UrlManager urlManager, JwtManager jwtManager,
                               ConfigurationManager configurationManager,
-                              DocumentManager documentManager, LocaleManager localeManager) {
+                              DocumentManager documentManager, LocaleManager localeManager,
+                              ConversionCacheManager conversionCacheManager, MetricsManager metricsManager,
+                              DownloadManager downloadManager) {
         this.urlManager = urlManager;
         this.jwtManager = jwtManager;
         this.configurationManager = configurationManager;
         this.documentManager = documentManager;
         this.localeManager = localeManager;
+        this.conversionCacheManager = conversionCacheManager;
+        this.metricsManager = metricsManager;
+        this.downloadManager = downloadManager;
     }
 
     public boolean isConvertable(String ext) {
@@ -90,6 +101,10 @@ public class ConvertManagerImpl implements ConvertManager {
         return null;
     }
 
+    public boolean isLegacyFormat(String ext) {
+        return isConvertable(ext) && Arrays.asList("docx", "xlsx", "pptx").contains(convertsTo(ext));
+    }
+
     public JSONObject convert(Long attachmentId, String ext, String convertToExt, ConfluenceUser user) throws Exception {
        String url = urlManager.getFileUri(attachmentId);
        String region = localeManager.getLocale(user).toLanguageTag();
@@ -97,16 +112,93 @@ public class ConvertManagerImpl implements ConvertManager {
     }
 
     public JSONObject convert(Long attachmentId, String currentExt, String convertToExt, String url, String region, boolean async) throws Exception {
-        try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
-            JSONObject body = new JSONObject();
-            body.put("async", async);
-            body.put("embeddedfonts", true);
-            body.put("filetype", currentExt);
-            body.put("outputtype", convertToExt);
-            body.put("key", documentManager.getKeyOfFile(attachmentId));
-            body.put("url", url);
-            body.put("region", region);
+        return convert(documentManager.getKeyOfFile(attachmentId), currentExt, convertToExt, url, region, async);
+    }
+
+    public JSONObject convertAndWait(String key, String currentExt, String convertToExt, String url, String region) throws Exception {
+        return waitFor(createBody(key, currentExt, convertToExt, url, region, true));
+    }
+
+    private JSONObject waitFor(JSONObject body) throws Exception {
+        long delay = configurationManager.getLongProperty("convert.poll.delay.initial", 500);
+        long maxDelay = configurationManager.getLongProperty("convert.poll.delay.max", 8000);
+        long deadline = System.currentTimeMillis() + configurationManager.getLongProperty("convert.timeout", 300) * 1000;
+        String key = body.getString("key");
+
+        while (true) {
+            JSONObject response = send(new JSONObject(body.toString()));
+
+            if (response.has("error")) {
+                throw new HttpException("ConvertService returned error " + response.get("error"));
+            }
+
+            if (response.has("endConvert") && response.getBoolean("endConvert")) {
+                return response;
+            }
+
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new TimeoutException("Conversion of " + key + " to " + body.getString("outputtype")
+                        + " did not finish in time");
+            }
+
+            log.debug("Conversion of " + key + " is in progress (" + response.optInt("percent") + "%), next check in " + delay + " ms");
 
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, maxDelay);
+        }
+    }
+
+    public byte[] convertAndDownload(String digest, String key, String currentExt, String convertToExt, String url,
+            String region, Long attachmentId, int version) throws Exception {
+        byte[] data = conversionCacheManager.get(digest, currentExt, convertToExt, attachmentId, version);
+        if (data != null) {
+            log.info("Conversion of " + key + " to " + convertToExt + " is served from the cache");
+            return data;
+        }
+
+        JSONObject response = convertAndWait(key, currentExt, convertToExt, url, region);
+        data = downloadManager.download(response.getString("fileUrl"));
+
+        conversionCacheManager.put(digest, currentExt, convertToExt, data, attachmentId, version);
+        return data;
+    }
+
+    /**
+     * Renders the first page of the document as a PNG that fits into the given box, keeping the aspect ratio.
+     */
+    public byte[] createThumbnail(String key, String currentExt, String url, int width, int height) throws Exception {
+        JSONObject thumbnail = new JSONObject();
+        thumbnail.put("aspect", 1);
+        thumbnail.put("first", true);
+        thumbnail.put("width", width);
+        thumbnail.put("height", height);
+
+        JSONObject body = createBody(key, currentExt, "png", url, null, true);
+        body.put("thumbnail", thumbnail);
+
+        JSONObject response = waitFor(body);
+        return downloadManager.download(response.getString("fileUrl"));
+    }
+
+    public JSONObject convert(String key, String currentExt, String convertToExt, String url, String region, boolean async) throws Exception {
+        return send(createBody(key, currentExt, convertToExt, url, region, async));
+    }
+
+    private JSONObject createBody(String key, String currentExt, String convertToExt, String url, String region,
+            boolean async) throws Exception {
+        JSONObject body = new JSONObject();
+        body.put("async", async);
+        body.put("embeddedfonts", true);
+        body.put("filetype", currentExt);
+        body.put("outputtype", convertToExt);
+        body.put("key", key);
+        body.put("url", url);
+        body.put("region", region);
+        return body;
+    }
+
+    private JSONObject send(JSONObject body) throws Exception {
+        try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
             StringEntity requestEntity = new StringEntity(body.toString(), ContentType.APPLICATION_JSON);
             HttpPost request = new HttpPost(urlManager.getInnerDocEditorUrl()
                     + configurationManager.getProperties().getProperty("files.docservice.url.convert"));
@@ -125,8 +217,10 @@ public class ConvertManagerImpl implements ConvertManager {
 
             log.debug("Sending POST to Docserver: " + body.toString());
 
+            long started = System.nanoTime();
             try (CloseableHttpResponse response = httpClient.execute(request)) {
                 int status = response.getStatusLine().getStatusCode();
+                metricsManager.recordTiming("docservice.convert", (System.nanoTime() - started) / 1000);
 
                 if (status != HttpStatus.SC_OK) {
                     throw new HttpException("Docserver returned code " + status);
@@ -0,0 +1,9 @@
+package onlyoffice.managers.convert;
+
+import java.io.Serializable;
+
+public interface PreConversionManager extends Serializable {
+    public boolean isEnabledForSpace(String spaceKey);
+    public void setEnabledForSpace(String spaceKey, boolean enabled);
+    public boolean enqueue(Long attachmentId);
+}
@@ -0,0 +1,294 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.convert;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.event.events.content.attachment.AttachmentCreateEvent;
+import com.atlassian.confluence.event.events.content.attachment.AttachmentUpdateEvent;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.format.FormatManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Converts legacy attachments of opted-in spaces into the conversion cache right after they are uploaded,
+ * so that a later convert request is served without waiting for ConvertService.
+ *
+ * Uploads are queued and drained by a single low-priority thread. Draining pauses during the configured
+ * quiet hours and once the daily budget of the node is spent; queued attachments wait for the next window.
+ */
+@Named
+@Default
+public class PreConversionManagerImpl implements PreConversionManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.convert.PreConversionManager");
+
+    private static final String SPACE_SETTING = "onlyoffice.preconvert";
+
+    @ComponentImport
+    private final EventPublisher eventPublisher;
+    @ComponentImport
+    private final PluginSettingsFactory pluginSettingsFactory;
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConvertManager convertManager;
+    private final ConversionCacheManager conversionCacheManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final AttachmentUtil attachmentUtil;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+    private final FormatManager formatManager;
+
+    private final BlockingQueue<Long> queue = new LinkedBlockingQueue<>(1000);
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "onlyoffice-preconvert");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private LocalDate budgetDate = LocalDate.now();
+    private int budgetUsed;
+
+    @Inject
+    public PreConversionManagerImpl(EventPublisher eventPublisher, PluginSettingsFactory pluginSettingsFactory,
+            AttachmentManager attachmentManager, TransactionTemplate transactionTemplate,
+            ConvertManager convertManager, ConversionCacheManager conversionCacheManager,
+            DocumentManager documentManager, UrlManager urlManager, AttachmentUtil attachmentUtil,
+            ConfigurationManager configurationManager, MetricsManager metricsManager,
+            FormatManager formatManager) {
+        this.eventPublisher = eventPublisher;
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.attachmentManager = attachmentManager;
+        this.transactionTemplate = transactionTemplate;
+        this.convertManager = convertManager;
+        this.conversionCacheManager = conversionCacheManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.attachmentUtil = attachmentUtil;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+        this.formatManager = formatManager;
+    }
+
+    @PostConstruct
+    public void init() {
+        eventPublisher.register(this);
+        scheduler.scheduleWithFixedDelay(this::drain, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        eventPublisher.unregister(this);
+        scheduler.shutdownNow();
+    }
+
+    @EventListener
+    public void onAttachmentCreate(AttachmentCreateEvent event) {
+        onAttachmentEvent(event.getAttachment());
+    }
+
+    @EventListener
+    public void onAttachmentUpdate(AttachmentUpdateEvent event) {
+        onAttachmentEvent(event.getAttachment());
+    }
+
+    public boolean isEnabledForSpace(String spaceKey) {
+        return Boolean.parseBoolean((String) pluginSettingsFactory.createSettingsForKey(spaceKey).get(SPACE_SETTING));
+    }
+
+    public void setEnabledForSpace(String spaceKey, boolean enabled) {
+        if (enabled) {
+            pluginSettingsFactory.createSettingsForKey(spaceKey).put(SPACE_SETTING, "true");
+        } else {
+            pluginSettingsFactory.createSettingsForKey(spaceKey).remove(SPACE_SETTING);
+        }
+    }
+
+    public boolean enqueue(Long attachmentId) {
+        if (!pending.add(attachmentId)) {
+            return true;
+        }
+
+        if (!queue.offer(attachmentId)) {
+            pending.remove(attachmentId);
+            metricsManager.increment("preconvert.dropped");
+            log.warn("Pre-conversion queue is full, attachment " + attachmentId + " is skipped");
+            return false;
+        }
+
+        metricsManager.increment("preconvert.queued");
+        return true;
+    }
+
+    private void onAttachmentEvent(Attachment attachment) {
+        if (attachment == null || attachment.isHidden() || configurationManager.getLongProperty("convert.preconvert.budget", 200) <= 0) {
+            return;
+        }
+
+        String fileName = attachment.getFileName();
+        String ext = fileName.substring(fileName.lastIndexOf(".") + 1).trim().toLowerCase();
+        if (!convertManager.isLegacyFormat(ext)) {
+            return;
+        }
+
+        Space space = attachment.getSpace();
+        if (space == null || !isEnabledForSpace(space.getKey())) {
+            return;
+        }
+
+        enqueue(attachment.getId());
+    }
+
+    private void drain() {
+        Long attachmentId;
+        while (isAllowed() && (attachmentId = queue.poll()) != null) {
+            pending.remove(attachmentId);
+            try {
+                if (preconvert(attachmentId)) {
+                    synchronized (this) {
+                        budgetUsed++;
+                    }
+                    metricsManager.increment("preconvert.converted");
+                }
+            } catch (Exception e) {
+                metricsManager.increment("preconvert.failed");
+                log.warn("Pre-conversion of attachment " + attachmentId + " failed", e);
+            }
+        }
+    }
+
+    private boolean preconvert(Long attachmentId) throws Exception {
+        Candidate candidate;
+        try {
+            candidate = (Candidate) transactionTemplate.execute(new TransactionCallback() {
+                @Override
+                public Object doInTransaction() {
+                    Attachment attachment = attachmentManager.getAttachment(attachmentId);
+                    if (attachment == null || !attachment.isLatestVersion()) {
+                        return null;
+                    }
+
+                    String fileName = attachment.getFileName();
+                    String ext = fileName.substring(fileName.lastIndexOf(".") + 1).trim().toLowerCase();
+                    String fileType = formatManager.getFileType(attachment);
+                    if (fileType == null || fileType.equals(convertManager.convertsTo(ext))) {
+                        return null;
+                    }
+
+                    Candidate candidate = new Candidate();
+                    candidate.ext = fileType;
+                    candidate.convertToExt = convertManager.convertsTo(ext);
+                    candidate.version = attachment.getVersion();
+                    candidate.key = documentManager.getKeyOfFile(attachmentId);
+                    candidate.url = urlManager.getFileUri(attachmentId);
+                    try {
+                        candidate.digest = attachmentUtil.getContentDigest(attachment);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return candidate;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (candidate == null
+                || conversionCacheManager.contains(candidate.digest, candidate.ext, candidate.convertToExt)) {
+            return false;
+        }
+
+        convertManager.convertAndDownload(candidate.digest, candidate.key, candidate.ext, candidate.convertToExt,
+                candidate.url, null, attachmentId, candidate.version);
+
+        log.info("Attachment " + attachmentId + " is pre-converted to " + candidate.convertToExt);
+        return true;
+    }
+
+    private synchronized boolean isAllowed() {
+        LocalDate today = LocalDate.now();
+        if (!today.equals(budgetDate)) {
+            budgetDate = today;
+            budgetUsed = 0;
+        }
+
+        if (budgetUsed >= configurationManager.getLongProperty("convert.preconvert.budget", 200)) {
+            return false;
+        }
+
+        String quietHours = configurationManager.getProperty("convert.preconvert.quiet-hours");
+        if (quietHours != null && quietHours.matches("\\s*\\d{1,2}\\s*-\\s*\\d{1,2}\\s*")) {
+            String[] bounds = quietHours.split("-");
+            int from = Integer.parseInt(bounds[0].trim());
+            int to = Integer.parseInt(bounds[1].trim());
+            int hour = LocalTime.now().getHour();
+
+            boolean quiet = from <= to ? hour >= from && hour < to : hour >= from || hour < to;
+            if (quiet) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static class Candidate {
+        private String ext;
+        private String convertToExt;
+        private int version;
+        private String key;
+        private String url;
+        private String digest;
+    }
+}
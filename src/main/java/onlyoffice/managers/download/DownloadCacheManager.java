@@ -0,0 +1,13 @@
+package onlyoffice.managers.download;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.utils.http.ContentResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+public interface DownloadCacheManager extends Serializable {
+    public boolean isCached(Attachment attachment);
+    public InputStream load(Attachment attachment, ContentResponse.Source source) throws IOException;
+}
@@ -0,0 +1,148 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.cache.DirectMemoryCache;
+import onlyoffice.utils.http.ContentResponse;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Keeps the data of recently downloaded attachment versions in direct memory, so the bursts of requests
+ * for the same version at the start of a co-editing session are not all served by the attachment storage.
+ * Only files up to the admission size are kept; entries are keyed by the version tag, so a version
+ * replaced by a force save is never served from the cache. The cache size bounds all the direct memory
+ * used, including reads in progress and evicted data that is still being sent.
+ */
+@Named
+@Default
+public class DownloadCacheManagerImpl implements DownloadCacheManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.download.DownloadCacheManager");
+
+    private final AttachmentUtil attachmentUtil;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final DirectMemoryCache cache;
+    private final long maxFileSize;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loads = new ConcurrentHashMap<>();
+
+    @Inject
+    public DownloadCacheManagerImpl(AttachmentUtil attachmentUtil, ConfigurationManager configurationManager,
+            MetricsManager metricsManager) {
+        this.attachmentUtil = attachmentUtil;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        cache = new DirectMemoryCache(configurationManager.getLongProperty("download.cache.size", 268435456));
+        maxFileSize = configurationManager.getLongProperty("download.cache.max-file-size", 20971520);
+    }
+
+    public boolean isCached(Attachment attachment) {
+        boolean cached = attachment.getFileSize() <= maxFileSize && cache.contains(attachmentUtil.getVersionTag(attachment));
+        metricsManager.increment(cached ? "download.cache.hit" : "download.cache.miss");
+        return cached;
+    }
+
+    /**
+     * Returns a stream over the cached data of the attachment. Data that is not cached yet is read from
+     * the source and kept if it is small enough and fits in the cache; concurrent requests for the same
+     * version wait for a single read instead of each reading the source.
+     */
+    public InputStream load(Attachment attachment, ContentResponse.Source source) throws IOException {
+        long size = attachment.getFileSize();
+        if (size > maxFileSize) {
+            return source.open();
+        }
+
+        String tag = attachmentUtil.getVersionTag(attachment);
+        InputStream cached = cache.get(tag);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<Void> loading = new CompletableFuture<>();
+        CompletableFuture<Void> current = loads.putIfAbsent(tag, loading);
+        if (current != null) {
+            try {
+                current.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) { }
+
+            cached = cache.get(tag);
+            return cached != null ? cached : source.open();
+        }
+
+        try {
+            cached = cache.get(tag);
+            return cached != null ? cached : read(attachment, tag, (int) size, source);
+        } finally {
+            loads.remove(tag);
+            loading.complete(null);
+        }
+    }
+
+    private InputStream read(Attachment attachment, String tag, int size, ContentResponse.Source source)
+            throws IOException {
+        ByteBuffer buffer = cache.allocate(size);
+        if (buffer == null) {
+            metricsManager.increment("download.cache.full");
+            return source.open();
+        }
+
+        boolean stored = false;
+        try (InputStream inputStream = source.open(); ReadableByteChannel channel = Channels.newChannel(inputStream)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+
+            if (buffer.hasRemaining() || inputStream.read() != -1) {
+                log.warn("Data of attachment " + attachment.getId() + " does not match its size, not caching it");
+                return source.open();
+            }
+
+            buffer.flip();
+            InputStream result = cache.put(tag, buffer);
+            stored = true;
+            metricsManager.increment("download.cache.admitted");
+            return result;
+        } finally {
+            if (!stored) {
+                cache.release(buffer);
+            }
+        }
+    }
+}
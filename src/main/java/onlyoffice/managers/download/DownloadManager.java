@@ -0,0 +1,10 @@
+package onlyoffice.managers.download;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+
+public interface DownloadManager extends Serializable {
+    public byte[] download(String url) throws Exception;
+    public byte[] download(String url, MessageDigest digest) throws Exception;
+    public byte[] downloadOverHttp(String url, MessageDigest digest) throws Exception;
+}
@@ -0,0 +1,241 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Fetches the files the Document Server produces: saved documents, changes archives and conversion results.
+ * When the Document Server cache is on a volume Confluence also mounts, the "sharedStorage" setting maps
+ * Document Server URL prefixes to local directories, one "url-prefix=path" pair per line, and the files are
+ * read from disk. A URL that does not map to a readable file inside its directory is downloaded over HTTP.
+ */
+@Named
+@Default
+public class DownloadManagerImpl implements DownloadManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.download.DownloadManager");
+
+    private final ConfigurationManager configurationManager;
+    private final UrlManager urlManager;
+    private final MetricsManager metricsManager;
+
+    private volatile String mappingsSource;
+    private volatile Map<String, Path> mappings = Collections.emptyMap();
+
+    @Inject
+    public DownloadManagerImpl(ConfigurationManager configurationManager, UrlManager urlManager,
+            MetricsManager metricsManager) {
+        this.configurationManager = configurationManager;
+        this.urlManager = urlManager;
+        this.metricsManager = metricsManager;
+    }
+
+    public byte[] download(String url) throws Exception {
+        return download(url, null);
+    }
+
+    public byte[] download(String url, MessageDigest digest) throws Exception {
+        File file = getSharedFile(url);
+
+        if (file != null) {
+            long started = System.nanoTime();
+            try (InputStream inputStream = new FileInputStream(file)) {
+                byte[] data = IOUtils.toByteArray(digest != null ? new DigestInputStream(inputStream, digest) : inputStream);
+                metricsManager.recordTiming("docservice.download.shared", (System.nanoTime() - started) / 1000);
+                metricsManager.increment("download.shared.hit");
+                return data;
+            } catch (IOException e) {
+                log.warn("Couldn't read " + file + ", downloading over HTTP: " + e.getMessage());
+                metricsManager.increment("download.shared.fallback");
+                if (digest != null) {
+                    digest.reset();
+                }
+            }
+        }
+
+        return downloadOverHttp(url, digest);
+    }
+
+    /**
+     * Never reads from the shared storage. Used for URLs that come from the browser rather than from
+     * the Document Server, whose signature must still be checked by the Document Server.
+     */
+    public byte[] downloadOverHttp(String url, MessageDigest digest) throws Exception {
+        try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
+            HttpGet request = new HttpGet(urlManager.replaceDocEditorURLToInternal(url));
+
+            long started = System.nanoTime();
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+
+                if (status == HttpStatus.SC_OK) {
+                    InputStream content = response.getEntity().getContent();
+                    if (digest != null) {
+                        content = new DigestInputStream(content, digest);
+                    }
+                    byte[] data = IOUtils.toByteArray(content);
+                    metricsManager.recordTiming("docservice.download", (System.nanoTime() - started) / 1000);
+                    return data;
+                } else {
+                    throw new HttpException("Document Server returned code " + status);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the local file behind a Document Server URL, or null when the URL is not under a mapped prefix
+     * or does not resolve to a regular file inside the mapped directory. Both the public and the internal
+     * form of the URL are matched.
+     */
+    private File getSharedFile(String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Path> mappings = getMappings();
+        if (mappings.isEmpty()) {
+            return null;
+        }
+
+        String internalUrl = urlManager.replaceDocEditorURLToInternal(url);
+
+        for (Map.Entry<String, Path> mapping : mappings.entrySet()) {
+            String prefix = mapping.getKey();
+            String matched = url.startsWith(prefix) ? url : internalUrl.startsWith(prefix) ? internalUrl : null;
+
+            if (matched != null) {
+                File file = resolve(mapping.getValue(), matched.substring(prefix.length()));
+                if (file == null) {
+                    metricsManager.increment("download.shared.fallback");
+                }
+                return file;
+            }
+        }
+
+        return null;
+    }
+
+    private File resolve(Path root, String remainder) {
+        int end = remainder.length();
+        for (char c : new char[] {'?', '#'}) {
+            int index = remainder.indexOf(c);
+            if (index >= 0 && index < end) {
+                end = index;
+            }
+        }
+
+        try {
+            String relative = new URI(remainder.substring(0, end)).getPath();
+            if (relative == null || relative.isEmpty() || relative.indexOf('\0') >= 0) {
+                return null;
+            }
+
+            Path base = root.toRealPath();
+            Path candidate = base.resolve(relative).normalize();
+
+            // the Document Server appends the download file name as the last segment of the URL
+            if (candidate.startsWith(base) && !Files.isRegularFile(candidate) && candidate.getParent() != null) {
+                candidate = candidate.getParent();
+            }
+
+            if (!candidate.startsWith(base) || candidate.equals(base) || !Files.isRegularFile(candidate)) {
+                if (!candidate.startsWith(base)) {
+                    log.warn("Rejected shared storage path outside of " + base + ": " + relative);
+                    metricsManager.increment("download.shared.rejected");
+                }
+                return null;
+            }
+
+            Path real = candidate.toRealPath();
+            if (!real.startsWith(base)) {
+                log.warn("Rejected shared storage path outside of " + base + ": " + real);
+                metricsManager.increment("download.shared.rejected");
+                return null;
+            }
+
+            return real.toFile();
+        } catch (URISyntaxException | IOException | RuntimeException e) {
+            log.warn("Couldn't resolve shared storage path " + remainder + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Map<String, Path> getMappings() {
+        String source = configurationManager.getStringPluginSetting("sharedStorage", "");
+
+        if (!source.equals(mappingsSource)) {
+            Map<String, Path> parsed = new LinkedHashMap<>();
+
+            for (String line : source.split("\\r?\\n")) {
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    if (!line.trim().isEmpty()) {
+                        log.warn("Invalid shared storage mapping: " + line);
+                    }
+                    continue;
+                }
+
+                String prefix = line.substring(0, separator).trim();
+                String path = line.substring(separator + 1).trim();
+                if (prefix.isEmpty() || path.isEmpty()) {
+                    log.warn("Invalid shared storage mapping: " + line);
+                    continue;
+                }
+
+                parsed.put(prefix.endsWith("/") ? prefix : prefix + "/", Paths.get(path));
+            }
+
+            mappings = parsed;
+            mappingsSource = source;
+        }
+
+        return mappings;
+    }
+}
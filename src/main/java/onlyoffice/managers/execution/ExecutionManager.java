@@ -0,0 +1,17 @@
+package onlyoffice.managers.execution;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Serializable;
+
+public interface ExecutionManager extends Serializable {
+    public interface RequestHandler {
+        void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+
+    public boolean isVirtual();
+    public void execute(String name, HttpServletRequest request, HttpServletResponse response, RequestHandler handler)
+            throws ServletException, IOException;
+}
@@ -0,0 +1,229 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.execution;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs blocking request work, such as round trips to the Document Server, off the container thread.
+ * The request is put into async mode and handled on a virtual thread when the JVM has them (Java 21),
+ * otherwise on a bounded pool of platform threads. When the request does not support async mode,
+ * or the work limit is reached, the handler runs on the calling thread as before.
+ *
+ * <p>A handler that outlasts execution.timeout is answered with 503 by the container thread and cut off
+ * the response, see GuardedResponse; the timeout is set well above the conversion timeout, so this is a last resort.
+ *
+ * <p>The handler runs with the user of the request set. It is not wrapped in a transaction, so no database
+ * connection is held while it waits for the Document Server. No Hibernate session is open on its thread either:
+ * attachment and permission reads, as well as writes, open their own short transactions.
+ */
+@Named
+@Default
+public class ExecutionManagerImpl implements ExecutionManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.execution.ExecutionManager");
+
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+    private final long timeout;
+
+    @Inject
+    public ExecutionManagerImpl(ConfigurationManager configurationManager, MetricsManager metricsManager) {
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        int concurrency = (int) configurationManager.getLongProperty("execution.concurrency", 200);
+        permits = new Semaphore(concurrency);
+        timeout = configurationManager.getLongProperty("execution.timeout", 900) * 1000;
+
+        ExecutorService virtualExecutor = createVirtualExecutor();
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtual = true;
+        } else {
+            int poolSize = (int) configurationManager.getLongProperty("execution.pool.size", 16);
+            executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>((int) configurationManager.getLongProperty("execution.pool.queue", 200)));
+            ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+            virtual = false;
+        }
+
+        log.info("Request work runs on " + (virtual ? "virtual threads" : "a pool of platform threads"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void execute(String name, HttpServletRequest request, HttpServletResponse response, RequestHandler handler)
+            throws ServletException, IOException {
+        if (!request.isAsyncSupported()) {
+            metricsManager.increment("execution.inline");
+            handler.handle(request, response);
+            return;
+        }
+
+        if (!permits.tryAcquire()) {
+            metricsManager.increment("execution.rejected");
+            handler.handle(request, response);
+            return;
+        }
+
+        ConfluenceUser user = AuthenticatedUserThreadLocal.get();
+        GuardedResponse guardedResponse = new GuardedResponse(response);
+        AsyncContext context = request.startAsync();
+        context.setTimeout(timeout);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                // the handler keeps running, but may no longer touch a response the container is about to recycle
+                guardedResponse.close();
+                metricsManager.increment("execution.timeout");
+                log.warn("Handling of " + name + " timed out after " + timeout + " ms");
+
+                if (!response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                }
+                event.getAsyncContext().complete();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                guardedResponse.close();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        long queued = System.nanoTime();
+        metricsManager.add("execution.queued", 1);
+
+        try {
+            executor.execute(() -> {
+                metricsManager.add("execution.queued", -1);
+                metricsManager.add("execution.active", 1);
+                metricsManager.recordTiming("execution.wait", (System.nanoTime() - queued) / 1000);
+
+                long started = System.nanoTime();
+                try {
+                    handleAs(handler, request, guardedResponse, user);
+                } catch (IOException | ServletException | RuntimeException e) {
+                    if (guardedResponse.isClosed()) {
+                        log.warn("Handling of " + name + " stopped after the request had timed out: " + e.getMessage());
+                    } else {
+                        log.error("Handling of " + name + " failed", e);
+                    }
+                    if (!guardedResponse.isCommitted()) {
+                        // the handler may have written part of an answer before it failed, so that answer is dropped
+                        guardedResponse.reset();
+                        guardedResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                } finally {
+                    metricsManager.add("execution.active", -1);
+                    metricsManager.recordTiming("execution." + name, (System.nanoTime() - started) / 1000);
+                    permits.release();
+                    if (!guardedResponse.isClosed()) {
+                        complete(context);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metricsManager.add("execution.queued", -1);
+            metricsManager.increment("execution.rejected");
+            permits.release();
+
+            try {
+                handler.handle(request, guardedResponse);
+            } finally {
+                complete(context);
+            }
+        }
+    }
+
+    private void complete(AsyncContext context) {
+        try {
+            context.complete();
+        } catch (IllegalStateException e) {
+            // the request timed out meanwhile, and the listener has completed it
+        }
+    }
+
+    private void handleAs(RequestHandler handler, HttpServletRequest request, HttpServletResponse response,
+            ConfluenceUser user) throws ServletException, IOException {
+        AuthenticatedUserThreadLocal.set(user);
+        try {
+            handler.handle(request, response);
+        } finally {
+            AuthenticatedUserThreadLocal.reset();
+        }
+    }
+
+    /**
+     * Looks the virtual thread executor up by reflection, as the plugin is built for Java 8.
+     */
+    private ExecutorService createVirtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
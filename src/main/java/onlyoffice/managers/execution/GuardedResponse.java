@@ -0,0 +1,321 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.execution;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The response an offloaded handler writes to. Once the container has given up on the request after a timeout,
+ * the response may already serve another request, so everything the handler writes from then on is dropped;
+ * writes to the body stream fail, so the handler stops early.
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+    private final Object lock = new Object();
+    private boolean closed;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    GuardedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Cuts the handler off the response; waits for a write in progress to finish.
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+    }
+
+    boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (outputStream == null) {
+                outputStream = new GuardedOutputStream(super.getOutputStream());
+            }
+            return outputStream;
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            if (writer == null) {
+                writer = new GuardedWriter(super.getWriter());
+            }
+            return writer;
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        synchronized (lock) {
+            return closed || super.isCommitted();
+        }
+    }
+
+    @Override
+    public void setStatus(int status) {
+        synchronized (lock) {
+            if (!closed) super.setStatus(status);
+        }
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+        synchronized (lock) {
+            if (!closed) super.sendError(status);
+        }
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+        synchronized (lock) {
+            if (!closed) super.sendError(status, message);
+        }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        synchronized (lock) {
+            if (!closed) super.sendRedirect(location);
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        synchronized (lock) {
+            if (!closed) super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        synchronized (lock) {
+            if (!closed) super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        synchronized (lock) {
+            if (!closed) super.setDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        synchronized (lock) {
+            if (!closed) super.addDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        synchronized (lock) {
+            if (!closed) super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        synchronized (lock) {
+            if (!closed) super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setContentType(String type) {
+        synchronized (lock) {
+            if (!closed) super.setContentType(type);
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        synchronized (lock) {
+            if (!closed) super.setCharacterEncoding(charset);
+        }
+    }
+
+    @Override
+    public void setContentLength(int length) {
+        synchronized (lock) {
+            if (!closed) super.setContentLength(length);
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(long length) {
+        synchronized (lock) {
+            if (!closed) super.setContentLengthLong(length);
+        }
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        synchronized (lock) {
+            if (!closed) super.setBufferSize(size);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        synchronized (lock) {
+            if (!closed) super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            if (!closed) super.reset();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        synchronized (lock) {
+            if (!closed) super.resetBuffer();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The request has timed out");
+        }
+    }
+
+    private class GuardedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        GuardedOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                checkOpen();
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                if (!closed) out.close();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * A writer cannot fail with an IOException, so once the response is closed its output is dropped
+     * and checkError() tells so.
+     */
+    private class GuardedWriter extends PrintWriter {
+        GuardedWriter(PrintWriter out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) {
+            synchronized (lock) {
+                if (closed) setError(); else super.write(c);
+            }
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            synchronized (lock) {
+                if (closed) setError(); else super.write(buf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String s, int off, int len) {
+            synchronized (lock) {
+                if (closed) setError(); else super.write(s, off, len);
+            }
+        }
+
+        // the line separator is written past write(), straight to the underlying writer
+        @Override
+        public void println() {
+            synchronized (lock) {
+                if (closed) setError(); else super.println();
+            }
+        }
+
+        @Override
+        public void flush() {
+            synchronized (lock) {
+                if (!closed) super.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (!closed) super.close();
+            }
+        }
+    }
+}
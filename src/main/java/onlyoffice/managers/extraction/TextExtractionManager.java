@@ -0,0 +1,11 @@
+package onlyoffice.managers.extraction;
+
+import com.atlassian.confluence.pages.Attachment;
+
+import java.io.Serializable;
+
+public interface TextExtractionManager extends Serializable {
+    public boolean isSupported(String ext);
+    public void requestExtraction(Long attachmentId);
+    public String getText(Attachment attachment);
+}
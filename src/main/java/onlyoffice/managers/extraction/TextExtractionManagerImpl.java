@@ -0,0 +1,252 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.extraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.search.ConfluenceIndexer;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.convert.ConvertManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.cache.FileCache;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Extracts plain text from attachments saved by the editor so that Confluence can index it.
+ *
+ * Saved attachments are queued and processed in small batches by a single low-priority thread. Text is
+ * stored under shared home per version tag, so a version is converted only once; after it is stored,
+ * the attachment is reindexed and the text extractor picks it up from the store. The store is bounded, so a
+ * saved version whose text has been evicted is queued again the next time it is indexed.
+ */
+@Named
+@Default
+public class TextExtractionManagerImpl implements TextExtractionManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.extraction.TextExtractionManager");
+
+    private static final int QUEUE_SIZE = 1000;
+
+    @ComponentImport
+    private final AttachmentManager attachmentManager;
+    @ComponentImport
+    private final ConfluenceIndexer confluenceIndexer;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConvertManager convertManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+    private final AttachmentUtil attachmentUtil;
+
+    private final FileCache cache;
+    private final Set<Long> queue = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "onlyoffice-text-extraction");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @Inject
+    public TextExtractionManagerImpl(AttachmentManager attachmentManager, ConfluenceIndexer confluenceIndexer,
+            TransactionTemplate transactionTemplate, ConvertManager convertManager, DocumentManager documentManager, UrlManager urlManager,
+            ConfigurationManager configurationManager, MetricsManager metricsManager, AttachmentUtil attachmentUtil) {
+        this.attachmentManager = attachmentManager;
+        this.confluenceIndexer = confluenceIndexer;
+        this.transactionTemplate = transactionTemplate;
+        this.convertManager = convertManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+        this.attachmentUtil = attachmentUtil;
+
+        File directory = configurationManager.getStorageDirectory("text");
+        cache = new FileCache(directory, configurationManager.getLongProperty("extract.cache.size", 536870912));
+    }
+
+    @PostConstruct
+    public void init() {
+        long interval = Math.max(configurationManager.getLongProperty("extract.interval", 30), 1);
+        scheduler.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Presentations are left out: ConvertService has no text output for them.
+     */
+    public boolean isSupported(String ext) {
+        String docType = ext != null ? documentManager.getDocType(ext) : null;
+        return "word".equals(docType) && !"txt".equals(ext) || "cell".equals(docType) && !"csv".equals(ext);
+    }
+
+    public void requestExtraction(Long attachmentId) {
+        synchronized (queue) {
+            if (queue.size() >= QUEUE_SIZE && !queue.contains(attachmentId)) {
+                metricsManager.increment("extract.dropped");
+                log.warn("Text extraction queue is full, attachment " + attachmentId + " is skipped");
+                return;
+            }
+            queue.add(attachmentId);
+        }
+    }
+
+    public String getText(Attachment attachment) {
+        File file = cache.get(getName(attachmentUtil.getVersionTag(attachment)));
+        if (file == null) {
+            // only text the editor's saves produced can have been evicted, a reindex must not convert every document
+            if (attachment.isLatestVersion() && attachmentUtil.isSavedByEditor(attachment)) {
+                requestExtraction(attachment.getId());
+            }
+            return null;
+        }
+
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Extracted text of attachment " + attachment.getId() + " cannot be read", e);
+            return null;
+        }
+    }
+
+    private void drain() {
+        long batch = configurationManager.getLongProperty("extract.batch", 10);
+        for (int i = 0; i < batch; i++) {
+            Long attachmentId;
+            synchronized (queue) {
+                Iterator<Long> iterator = queue.iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                attachmentId = iterator.next();
+                iterator.remove();
+            }
+
+            try {
+                if (extract(attachmentId)) {
+                    metricsManager.increment("extract.extracted");
+                }
+            } catch (Exception e) {
+                metricsManager.increment("extract.failed");
+                log.warn("Text extraction of attachment " + attachmentId + " failed", e);
+            }
+        }
+    }
+
+    private boolean extract(Long attachmentId) throws Exception {
+        Candidate candidate = (Candidate) transactionTemplate.execute(new TransactionCallback() {
+            @Override
+            public Object doInTransaction() {
+                Attachment attachment = attachmentManager.getAttachment(attachmentId);
+                if (attachment == null || !attachment.isLatestVersion()) {
+                    return null;
+                }
+
+                String ext = attachment.getFileExtension();
+                String tag = attachmentUtil.getVersionTag(attachment);
+                if (!isSupported(ext) || cache.get(getName(tag)) != null) {
+                    return null;
+                }
+
+                Candidate candidate = new Candidate();
+                candidate.ext = ext;
+                candidate.convertToExt = "cell".equals(documentManager.getDocType(ext)) ? "csv" : "txt";
+                candidate.tag = tag;
+                candidate.key = documentManager.getKeyOfFile(attachmentId) + "_" + candidate.convertToExt;
+                candidate.url = urlManager.getFileUri(attachmentId);
+                return candidate;
+            }
+        });
+
+        if (candidate == null) {
+            return false;
+        }
+
+        byte[] data = convertManager.convertAndDownload(null, candidate.key, candidate.ext, candidate.convertToExt,
+                candidate.url, null, null, 0);
+
+        String text = new String(data, StandardCharsets.UTF_8);
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        int maxLength = (int) configurationManager.getLongProperty("extract.max-length", 1048576);
+        if (text.length() > maxLength) {
+            text = text.substring(0, maxLength);
+        }
+
+        cache.put(getName(candidate.tag), new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+
+        transactionTemplate.execute(new TransactionCallback() {
+            @Override
+            public Object doInTransaction() {
+                Attachment attachment = attachmentManager.getAttachment(attachmentId);
+                if (attachment != null && candidate.tag.equals(attachmentUtil.getVersionTag(attachment))) {
+                    confluenceIndexer.reIndex(attachment);
+                }
+                return null;
+            }
+        });
+
+        log.info("Text of attachment " + attachmentId + " as of " + candidate.tag + " is extracted");
+        return true;
+    }
+
+    private String getName(String tag) {
+        return tag + ".txt";
+    }
+
+    private static class Candidate {
+        private String ext;
+        private String convertToExt;
+        private String tag;
+        private String key;
+        private String url;
+    }
+}
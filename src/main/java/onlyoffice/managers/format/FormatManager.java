@@ -0,0 +1,9 @@
+package onlyoffice.managers.format;
+
+import com.atlassian.confluence.pages.Attachment;
+
+import java.io.Serializable;
+
+public interface FormatManager extends Serializable {
+    public String getFileType(Attachment attachment);
+}
@@ -0,0 +1,360 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Checks the first bytes of an attachment against its extension before the file is sent to the Document Server.
+ * A file whose content is another format of the same document type gets the type of its content, e.g. a zipped
+ * workbook named .xls is sent as xlsx; a file that cannot be opened as its document type at all is rejected.
+ * Verdicts are kept per attachment version.
+ */
+@Named
+@Default
+public class FormatManagerImpl implements FormatManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.format.FormatManager");
+
+    private static final String REJECTED = "";
+
+    private static final byte[] OLE2_MAGIC = {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1};
+    private static final byte[] ZIP_MAGIC = {0x50, 0x4B, 0x03, 0x04};
+    private static final byte[] PDF_MAGIC = "%PDF-".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RTF_MAGIC = "{\\rtf".getBytes(StandardCharsets.US_ASCII);
+
+    private static final List<String> OLE2_TYPES = Arrays.asList("doc", "dot", "xls", "xlt", "ppt", "pot", "pps");
+    private static final List<String> OOXML_TYPES = Arrays.asList("docx", "docm", "dotx", "dotm", "docxf", "oform",
+            "xlsx", "xlsm", "xltx", "xltm", "pptx", "pptm", "ppsx", "ppsm", "potx", "potm");
+    private static final List<String> ODF_TYPES = Arrays.asList("odt", "ott", "ods", "ots", "odp", "otp");
+    private static final List<String> TEXT_TYPES = Arrays.asList("txt", "csv", "html", "htm", "mht");
+
+    private final AttachmentUtil attachmentUtil;
+    private final DocumentManager documentManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final int sniffSize;
+    private final Map<String, String> verdicts;
+
+    @Inject
+    public FormatManagerImpl(AttachmentUtil attachmentUtil, DocumentManager documentManager,
+            ConfigurationManager configurationManager, MetricsManager metricsManager) {
+        this.attachmentUtil = attachmentUtil;
+        this.documentManager = documentManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        sniffSize = (int) Math.max(configurationManager.getLongProperty("format.sniff.size", 8192), 512);
+
+        long maxEntries = configurationManager.getLongProperty("format.cache.entries", 10000);
+        verdicts = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Returns the type the Document Server should open the attachment as, or null when the content
+     * does not match its document type. Extensions the sniffer does not know are returned as they are.
+     */
+    public String getFileType(Attachment attachment) {
+        String ext = attachment.getFileExtension().trim().toLowerCase();
+        if (!isSniffed(ext) || attachment.getFileSize() == 0) {
+            return ext;
+        }
+
+        String tag = attachmentUtil.getVersionTag(attachment) + "." + ext;
+        String verdict = verdicts.get(tag);
+
+        if (verdict == null) {
+            long started = System.nanoTime();
+            byte[] header;
+            try (InputStream data = attachmentUtil.getAttachmentData(attachment.getId())) {
+                header = readHeader(data);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Couldn't read attachment " + attachment.getId() + ", trusting its extension: " + e.getMessage());
+                return ext;
+            }
+
+            verdict = detect(attachment, ext, header);
+            metricsManager.recordTiming("format.sniff", (System.nanoTime() - started) / 1000);
+
+            if (verdict.isEmpty()) {
+                metricsManager.increment("format.rejected");
+                log.warn("Content of attachment " + attachment.getId() + " does not match its " + ext + " extension");
+            } else if (!verdict.equals(ext)) {
+                metricsManager.increment("format.corrected");
+                log.info("Attachment " + attachment.getId() + " named as " + ext + " is opened as " + verdict);
+            }
+
+            verdicts.put(tag, verdict);
+        }
+
+        return verdict.isEmpty() ? null : verdict;
+    }
+
+    private boolean isSniffed(String ext) {
+        return documentManager.getDocType(ext) != null
+                && (OLE2_TYPES.contains(ext) || OOXML_TYPES.contains(ext) || ODF_TYPES.contains(ext)
+                        || TEXT_TYPES.contains(ext) || ext.equals("pdf") || ext.equals("rtf"));
+    }
+
+    private String detect(Attachment attachment, String ext, byte[] header) {
+        if (startsWith(header, OLE2_MAGIC)) {
+            // OOXML files protected with a password are stored in an OLE2 container
+            if (OLE2_TYPES.contains(ext) || OOXML_TYPES.contains(ext)) {
+                return ext;
+            }
+            return byDocType(ext, "doc", "xls", "ppt");
+        }
+
+        if (startsWith(header, ZIP_MAGIC)) {
+            if (!hasCentralDirectory(attachment)) {
+                return REJECTED;
+            }
+
+            String type = getOdfType(header);
+            if (type != null) {
+                return matches(ext, type, ODF_TYPES);
+            }
+
+            type = getOoxmlType(header);
+            if (type != null) {
+                return matches(ext, type, OOXML_TYPES);
+            }
+
+            // the parts that tell the type may lie past the sniffed header
+            return OOXML_TYPES.contains(ext) || ODF_TYPES.contains(ext) ? ext : REJECTED;
+        }
+
+        if (startsWith(header, PDF_MAGIC)) {
+            return matches(ext, "pdf", null);
+        }
+
+        if (startsWith(header, RTF_MAGIC)) {
+            return matches(ext, "rtf", null);
+        }
+
+        if (isText(header)) {
+            String text = getLeadingText(header);
+
+            if (text.startsWith("<!doctype html") || text.startsWith("<html")
+                    || text.startsWith("<?xml") && text.contains("<html")) {
+                return ext.equals("htm") ? ext : matches(ext, "html", null);
+            }
+
+            if (text.startsWith("mime-version:")) {
+                return matches(ext, "mht", null);
+            }
+
+            return TEXT_TYPES.contains(ext) ? ext : byDocType(ext, "txt", "csv", null);
+        }
+
+        return REJECTED;
+    }
+
+    /**
+     * Keeps the extension when it belongs to the same family and document type as the detected type,
+     * otherwise corrects it to the detected type if the document type is the same.
+     */
+    private String matches(String ext, String type, List<String> family) {
+        String docType = documentManager.getDocType(ext);
+        if (docType == null || !docType.equals(documentManager.getDocType(type))) {
+            return REJECTED;
+        }
+        return family != null && family.contains(ext) || ext.equals(type) ? ext : type;
+    }
+
+    private String byDocType(String ext, String word, String cell, String slide) {
+        String docType = documentManager.getDocType(ext);
+        String type = "word".equals(docType) ? word : "cell".equals(docType) ? cell : "slide".equals(docType) ? slide : null;
+        return type != null ? type : REJECTED;
+    }
+
+    private String getOdfType(byte[] header) {
+        if (header.length < 30 || getShort(header, 8) != 0) {
+            return null;
+        }
+
+        int nameLength = getShort(header, 26);
+        int start = 30 + nameLength + getShort(header, 28);
+        long size = getInt(header, 18);
+        if (start + size > header.length
+                || !"mimetype".equals(new String(header, 30, nameLength, StandardCharsets.US_ASCII))) {
+            return null;
+        }
+
+        switch (new String(header, start, (int) size, StandardCharsets.US_ASCII)) {
+            case "application/vnd.oasis.opendocument.text": return "odt";
+            case "application/vnd.oasis.opendocument.text-template": return "ott";
+            case "application/vnd.oasis.opendocument.spreadsheet": return "ods";
+            case "application/vnd.oasis.opendocument.spreadsheet-template": return "ots";
+            case "application/vnd.oasis.opendocument.presentation": return "odp";
+            case "application/vnd.oasis.opendocument.presentation-template": return "otp";
+            default: return null;
+        }
+    }
+
+    private String getOoxmlType(byte[] header) {
+        long offset = 0;
+
+        while (offset + 30 <= header.length && getInt(header, (int) offset) == 0x04034B50L) {
+            int position = (int) offset;
+            int nameLength = getShort(header, position + 26);
+            if (position + 30 + nameLength > header.length) {
+                break;
+            }
+
+            String name = new String(header, position + 30, nameLength, StandardCharsets.UTF_8);
+            if (name.startsWith("word/")) return "docx";
+            if (name.startsWith("xl/")) return "xlsx";
+            if (name.startsWith("ppt/")) return "pptx";
+
+            // the entry size is only known from the data descriptor that follows the data, so the next entry is searched for
+            if ((getShort(header, position + 6) & 0x08) != 0) {
+                offset = indexOf(header, ZIP_MAGIC, position + 30 + nameLength);
+                if (offset < 0) {
+                    break;
+                }
+                continue;
+            }
+
+            offset += 30 + nameLength + getShort(header, position + 28) + getInt(header, position + 18);
+        }
+
+        return null;
+    }
+
+    /**
+     * A ZIP container cut short during upload has no end of central directory record, which the Document
+     * Server needs to open it. Only checked when the attachment is stored as a local file.
+     */
+    private boolean hasCentralDirectory(Attachment attachment) {
+        File file = attachmentUtil.getAttachmentFile(attachment);
+        if (file == null || !file.isFile()) {
+            return true;
+        }
+
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long length = input.length();
+            int tail = (int) Math.min(length, 22 + 65535);
+            byte[] buffer = new byte[tail];
+            input.seek(length - tail);
+            input.readFully(buffer);
+
+            for (int i = tail - 22; i >= 0; i--) {
+                if (getInt(buffer, i) == 0x06054B50L) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            log.warn("Couldn't check the end of " + file + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean isText(byte[] header) {
+        if (header.length >= 2 && (header[0] == (byte) 0xFF && header[1] == (byte) 0xFE
+                || header[0] == (byte) 0xFE && header[1] == (byte) 0xFF)) {
+            return true;
+        }
+
+        int control = 0;
+        for (byte b : header) {
+            if (b == 0) {
+                return false;
+            }
+            if (b > 0 && b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1B) {
+                control++;
+            }
+        }
+        return control * 20 < header.length;
+    }
+
+    private String getLeadingText(byte[] header) {
+        int start = startsWith(header, new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}) ? 3 : 0;
+        String text = new String(header, start, header.length - start, StandardCharsets.ISO_8859_1);
+        return text.trim().toLowerCase();
+    }
+
+    private byte[] readHeader(InputStream data) throws IOException {
+        byte[] buffer = new byte[sniffSize];
+        int read = IOUtils.read(data, buffer);
+        return read < buffer.length ? Arrays.copyOf(buffer, read) : buffer;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static long getInt(byte[] data, int offset) {
+        return (getShort(data, offset) | (long) getShort(data, offset + 2) << 16);
+    }
+}
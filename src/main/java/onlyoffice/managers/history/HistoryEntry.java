@@ -0,0 +1,106 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.history;
+
+/**
+ * One version of an attachment as stored in its history index. The entry keeps the fields the editor
+ * needs to list the version and points to its changes and diff, whose contents stay in their attachments
+ * so the index remains small however heavily the document was edited.
+ */
+public class HistoryEntry {
+    private int version;
+    private long attachmentId;
+    private String key;
+    private long created;
+    private String userId;
+    private String userName;
+    private String serverVersion;
+    private Long changesId;
+    private Long diffId;
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public long getAttachmentId() {
+        return attachmentId;
+    }
+
+    public void setAttachmentId(long attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void setUser(String id, String name) {
+        this.userId = id;
+        this.userName = name;
+    }
+
+    public String getServerVersion() {
+        return serverVersion;
+    }
+
+    public void setServerVersion(String serverVersion) {
+        this.serverVersion = serverVersion;
+    }
+
+    public Long getChangesId() {
+        return changesId;
+    }
+
+    public void setChangesId(Long changesId) {
+        this.changesId = changesId;
+    }
+
+    public Long getDiffId() {
+        return diffId;
+    }
+
+    public void setDiffId(Long diffId) {
+        this.diffId = diffId;
+    }
+}
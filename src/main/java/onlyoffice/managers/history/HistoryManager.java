@@ -0,0 +1,13 @@
+package onlyoffice.managers.history;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+public interface HistoryManager extends Serializable {
+    public List<HistoryEntry> getHistory(Long attachmentId) throws IOException;
+    public void recordVersion(Long attachmentId) throws IOException;
+    public void writeChanges(HistoryEntry entry, JsonWriter writer) throws IOException;
+}
@@ -0,0 +1,287 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.history;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.confluence.pages.Attachment;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.parsing.ParsingUtil;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Keeps the history of an attachment as a JSON index in a text property of its latest version.
+ * The index is updated when the editor saves a version; versions added in any other way are picked up
+ * the next time the history is read, and only the versions missing from the index are loaded.
+ */
+@Named
+@Default
+public class HistoryManagerImpl implements HistoryManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.history.HistoryManager");
+
+    private static final String HISTORY_INDEX = "onlyoffice-history-index";
+    private static final Type INDEX_TYPE = new TypeToken<List<HistoryEntry>>() { }.getType();
+    private static final Gson gson = new Gson();
+
+    private final AttachmentUtil attachmentUtil;
+    private final DocumentManager documentManager;
+    private final ParsingUtil parsingUtil;
+    private final MetricsManager metricsManager;
+
+    @Inject
+    public HistoryManagerImpl(AttachmentUtil attachmentUtil, DocumentManager documentManager,
+            ParsingUtil parsingUtil, MetricsManager metricsManager) {
+        this.attachmentUtil = attachmentUtil;
+        this.documentManager = documentManager;
+        this.parsingUtil = parsingUtil;
+        this.metricsManager = metricsManager;
+    }
+
+    /**
+     * Returns the versions of the attachment from oldest to newest, or {@code null} if there is no such attachment.
+     * The key of the latest version is always computed anew, as it follows the collaborative editing key.
+     */
+    public List<HistoryEntry> getHistory(Long attachmentId) throws IOException {
+        List<Attachment> versions = null;
+        List<HistoryEntry> index = readIndex(attachmentId);
+
+        if (index == null || !isCurrent(attachmentId, index)) {
+            versions = attachmentUtil.getAllVersions(attachmentId);
+            if (versions == null) {
+                return null;
+            }
+
+            index = update(attachmentId, versions, index, false);
+            metricsManager.increment("history.index.rebuilt");
+        } else {
+            metricsManager.increment("history.index.hit");
+        }
+
+        if (!index.isEmpty()) {
+            index.get(index.size() - 1).setKey(documentManager.getKeyOfFile(attachmentId));
+        }
+
+        return index;
+    }
+
+    /**
+     * Brings the index up to date after the editor has saved the attachment. The entry of the latest version
+     * is always rebuilt, since a force save replaces the data and changes of a version without adding one.
+     */
+    public void recordVersion(Long attachmentId) throws IOException {
+        List<Attachment> versions = attachmentUtil.getAllVersions(attachmentId);
+        if (versions != null) {
+            update(attachmentId, versions, readIndex(attachmentId), true);
+        }
+    }
+
+    private boolean isCurrent(Long attachmentId, List<HistoryEntry> index) {
+        if (index.isEmpty()) {
+            return false;
+        }
+
+        HistoryEntry latest = index.get(index.size() - 1);
+        return latest.getAttachmentId() == attachmentId && latest.getVersion() == attachmentUtil.getVersion(attachmentId);
+    }
+
+    private List<HistoryEntry> update(Long attachmentId, List<Attachment> versions, List<HistoryEntry> index,
+            boolean rebuildLatest) throws IOException {
+        Map<Integer, HistoryEntry> known = new HashMap<>();
+        if (index != null) {
+            for (HistoryEntry entry : index) {
+                known.put(entry.getVersion(), entry);
+            }
+        }
+
+        versions = new ArrayList<>(versions);
+        Collections.reverse(versions);
+
+        List<HistoryEntry> entries = new ArrayList<>();
+        Attachment prevVersion = null;
+        for (Attachment version : versions) {
+            HistoryEntry entry = known.get(version.getVersion());
+            boolean latest = version.getId() == attachmentId;
+
+            // a version gets a new id once a newer one is saved, so its entry is only reused while the id matches
+            if (entry == null || entry.getAttachmentId() != version.getId() || latest && rebuildLatest) {
+                entry = createEntry(version, prevVersion);
+            }
+
+            entries.add(entry);
+            prevVersion = version;
+        }
+
+        attachmentUtil.setTextProperty(attachmentId, HISTORY_INDEX, gson.toJson(entries, INDEX_TYPE));
+        return entries;
+    }
+
+    private HistoryEntry createEntry(Attachment attachment, Attachment prevVersion) throws IOException {
+        HistoryEntry entry = new HistoryEntry();
+        entry.setVersion(attachment.getVersion());
+        entry.setAttachmentId(attachment.getId());
+        entry.setKey(documentManager.getKeyOfFile(attachment.getId()));
+        entry.setCreated(attachment.getCreationDate().getTime());
+        entry.setUser(attachment.getCreator().getName(), attachment.getCreator().getFullName());
+
+        boolean adjacentVersions = prevVersion != null && (attachment.getVersion() - prevVersion.getVersion()) == 1;
+
+        Attachment changes = attachmentUtil.getAttachmentChanges(attachment.getId());
+        if (changes != null) {
+            if (adjacentVersions) {
+                JSONObject changesJSON = readChanges(changes.getId());
+                try {
+                    entry.setServerVersion(changesJSON.getString("serverVersion"));
+                    // checked once here, as the history response splices the text in as it is
+                    gson.fromJson(changesJSON.getString("changes"), JsonElement.class);
+                } catch (JSONException | JsonParseException e) {
+                    throw new IOException(e.getMessage());
+                }
+                entry.setChangesId(changes.getId());
+            } else {
+                attachmentUtil.removeAttachmentChanges(attachment.getId());
+            }
+        }
+
+        if (adjacentVersions) {
+            Attachment diff = attachmentUtil.getAttachmentDiff(attachment.getId());
+            if (diff != null) {
+                entry.setDiffId(diff.getId());
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Writes the changes of the version as a "changes" member, or nothing if the version has none.
+     * The changes are copied token by token from the changes attachment, so they are never held in memory as a whole.
+     */
+    public void writeChanges(HistoryEntry entry, JsonWriter writer) throws IOException {
+        if (entry.getChangesId() == null) {
+            return;
+        }
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                attachmentUtil.getAttachmentData(entry.getChangesId()), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"changes".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                writer.name("changes");
+                if (reader.peek() == JsonToken.STRING) {
+                    writer.jsonValue(reader.nextString());
+                } else {
+                    copyValue(reader, writer);
+                }
+                return;
+            }
+        }
+    }
+
+    private void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                // the number goes out as it was written, without a round trip through double
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected " + reader.peek() + " in changes");
+        }
+    }
+
+    private JSONObject readChanges(Long changesId) throws IOException {
+        try (InputStream changesStream = attachmentUtil.getAttachmentData(changesId)) {
+            return new JSONObject(parsingUtil.getBody(changesStream));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private List<HistoryEntry> readIndex(Long attachmentId) {
+        String json = attachmentUtil.getTextProperty(attachmentId, HISTORY_INDEX);
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return gson.fromJson(json, INDEX_TYPE);
+        } catch (JsonParseException e) {
+            log.warn("History index of " + attachmentId + " is unreadable and will be rebuilt: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package onlyoffice.managers.image;
+
+import com.atlassian.confluence.pages.Attachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+public interface ImageManager extends Serializable {
+    public boolean isSupported(String ext);
+    public String getTargetType(String ext);
+    public File getImage(Attachment attachment) throws IOException;
+}
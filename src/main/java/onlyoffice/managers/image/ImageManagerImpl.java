@@ -0,0 +1,337 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.managers.image;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.cache.FileCache;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Node;
+
+import javax.enterprise.inject.Default;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Produces the images inserted into documents: pictures larger than the configured size are scaled down
+ * and recompressed, and bitmaps are converted to PNG. The results are kept per attachment version under
+ * shared home. Images that need no change, and those too large to decode safely, are used as they are.
+ */
+@Named
+@Default
+public class ImageManagerImpl implements ImageManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.image.ImageManager");
+
+    private static final List<String> SUPPORTED_TYPES = Arrays.asList("jpg", "jpeg", "png", "bmp");
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private final AttachmentUtil attachmentUtil;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final FileCache cache;
+    private final int maxDimension;
+    private final long maxPixels;
+    private final float quality;
+    private final Semaphore permits;
+
+    @Inject
+    public ImageManagerImpl(AttachmentUtil attachmentUtil,
+            ConfigurationManager configurationManager, MetricsManager metricsManager) {
+        this.attachmentUtil = attachmentUtil;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        File directory = configurationManager.getStorageDirectory("images");
+        cache = new FileCache(directory, configurationManager.getLongProperty("image.cache.size", 536870912));
+        maxDimension = (int) configurationManager.getLongProperty("image.max-dimension", 2048);
+        maxPixels = configurationManager.getLongProperty("image.max-pixels", 100000000);
+        quality = configurationManager.getLongProperty("image.quality", 85) / 100f;
+        permits = new Semaphore((int) configurationManager.getLongProperty("image.concurrency", 2));
+    }
+
+    public boolean isSupported(String ext) {
+        return ext != null && SUPPORTED_TYPES.contains(ext.toLowerCase());
+    }
+
+    public String getTargetType(String ext) {
+        ext = ext.toLowerCase();
+        return ext.equals("bmp") ? "png" : ext;
+    }
+
+    /**
+     * Returns the image to insert in place of the attachment, or {@code null} if the attachment itself should be used.
+     */
+    public File getImage(Attachment attachment) throws IOException {
+        String ext = attachment.getFileExtension();
+        if (!isSupported(ext)) {
+            return null;
+        }
+
+        String targetType = getTargetType(ext);
+        String name = attachmentUtil.getVersionTag(attachment) + "-" + maxDimension + "." + targetType;
+
+        File image = cache.get(name);
+        if (image != null) {
+            metricsManager.increment("image.cache.hit");
+            return image;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        try {
+            // another request may have produced it while this one waited
+            image = cache.get(name);
+            if (image != null) {
+                return image;
+            }
+
+            long started = System.nanoTime();
+            byte[] data = createImage(attachment, ext, targetType);
+            if (data == null) {
+                return null;
+            }
+
+            metricsManager.increment("image.created");
+            metricsManager.recordTiming("image.create", (System.nanoTime() - started) / 1000);
+            log.info("Image " + name + " is created, " + attachment.getFileSize() + " -> " + data.length + " bytes");
+
+            return cache.put(name, new ByteArrayInputStream(data));
+        } finally {
+            permits.release();
+        }
+    }
+
+    private byte[] createImage(Attachment attachment, String ext, String targetType) throws IOException {
+        try (InputStream inputStream = attachmentUtil.getAttachmentData(attachment.getId());
+             ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            if (imageInputStream == null) {
+                return null;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                boolean jpeg = targetType.equals("jpg") || targetType.equals("jpeg");
+                reader.setInput(imageInputStream, true, !jpeg);
+
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                boolean scale = Math.max(width, height) > maxDimension;
+
+                if (!scale && ext.equals(targetType) || (long) width * height > maxPixels) {
+                    return null;
+                }
+
+                // decoding only every n-th pixel keeps memory low for camera pictures many times the target size
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / (maxDimension * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                // the orientation is not written to the new image, so it is applied to the pixels instead
+                int orientation = jpeg ? getOrientation(reader) : 1;
+
+                BufferedImage source = reader.read(0, param);
+                return encode(resize(source, orientation, targetType), targetType);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage resize(BufferedImage source, int orientation, String targetType) {
+        boolean transposed = orientation >= 5;
+        int sourceWidth = transposed ? source.getHeight() : source.getWidth();
+        int sourceHeight = transposed ? source.getWidth() : source.getHeight();
+
+        double ratio = Math.min(1.0, (double) maxDimension / Math.max(sourceWidth, sourceHeight));
+        int width = Math.max(1, (int) Math.round(sourceWidth * ratio));
+        int height = Math.max(1, (int) Math.round(sourceHeight * ratio));
+
+        boolean alpha = targetType.equals("png") && source.getColorModel().hasAlpha();
+        BufferedImage target = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (!alpha) {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, width, height);
+            }
+
+            AffineTransform transform = AffineTransform.getScaleInstance((double) width / sourceWidth,
+                    (double) height / sourceHeight);
+            transform.concatenate(getOrientationTransform(orientation, source.getWidth(), source.getHeight()));
+            graphics.drawImage(source, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return target;
+    }
+
+    /**
+     * Maps the stored pixels to their upright position for an EXIF orientation value.
+     */
+    private AffineTransform getOrientationTransform(int orientation, int width, int height) {
+        switch (orientation) {
+            case 2: return new AffineTransform(-1, 0, 0, 1, width, 0);
+            case 3: return new AffineTransform(-1, 0, 0, -1, width, height);
+            case 4: return new AffineTransform(1, 0, 0, -1, 0, height);
+            case 5: return new AffineTransform(0, 1, 1, 0, 0, 0);
+            case 6: return new AffineTransform(0, 1, -1, 0, height, 0);
+            case 7: return new AffineTransform(0, -1, -1, 0, height, width);
+            case 8: return new AffineTransform(0, -1, 1, 0, 0, width);
+            default: return new AffineTransform();
+        }
+    }
+
+    /**
+     * Reads the EXIF orientation from the APP1 segment of a JPEG, or returns 1 (upright) when there is none.
+     */
+    private int getOrientation(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null || !Arrays.asList(metadata.getMetadataFormatNames()).contains(JPEG_METADATA_FORMAT)) {
+                return 1;
+            }
+
+            Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+            for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (!node.getNodeName().equals("markerSequence")) {
+                    continue;
+                }
+
+                for (Node marker = node.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+                    if (marker.getNodeName().equals("unknown")
+                            && "225".equals(((IIOMetadataNode) marker).getAttribute("MarkerTag"))) {
+                        Object data = ((IIOMetadataNode) marker).getUserObject();
+                        int orientation = data instanceof byte[] ? readOrientation((byte[]) data) : 0;
+                        if (orientation != 0) {
+                            return orientation;
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("EXIF orientation cannot be read: " + e.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * Finds the orientation tag in the first IFD of an EXIF block, which is "Exif" and two zero bytes
+     * followed by a TIFF header. Returns 0 when it is missing or invalid.
+     */
+    private int readOrientation(byte[] data) {
+        if (data.length < 14 || data[0] != 'E' || data[1] != 'x' || data[2] != 'i' || data[3] != 'f') {
+            return 0;
+        }
+
+        ByteBuffer tiff = ByteBuffer.wrap(data, 6, data.length - 6).slice();
+        short byteOrder = tiff.getShort(0);
+        if (byteOrder == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4D4D) {
+            return 0;
+        }
+
+        int ifd = tiff.getInt(4);
+        if (ifd < 8 || ifd > tiff.limit() - 2) {
+            return 0;
+        }
+
+        int count = tiff.getShort(ifd) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry > tiff.limit() - 12) {
+                break;
+            }
+            if ((tiff.getShort(entry) & 0xffff) == 0x0112) {
+                int orientation = tiff.getShort(entry + 8) & 0xffff;
+                return orientation >= 1 && orientation <= 8 ? orientation : 0;
+            }
+        }
+        return 0;
+    }
+
+    private byte[] encode(BufferedImage image, String targetType) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        if (targetType.equals("png")) {
+            ImageIO.write(image, "png", output);
+            return output.toByteArray();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        return output.toByteArray();
+    }
+}
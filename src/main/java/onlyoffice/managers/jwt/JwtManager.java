@@ -3,10 +3,12 @@ package onlyoffice.managers.jwt;
 import org.json.JSONObject;
 
 import java.io.Serializable;
+import java.util.List;
 
 public interface JwtManager extends Serializable {
     public Boolean jwtEnabled();
     public String createToken(JSONObject payload) throws Exception;
+    public List<String> createTokens(List<JSONObject> payloads) throws Exception;
     public Boolean verify(String token);
     public String getJwtHeader();
 }
@@ -25,8 +25,10 @@ import org.json.JSONObject;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Base64.Encoder;
+import java.util.List;
 
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.Mac;
@@ -63,20 +65,42 @@ public class JwtManagerImpl implements JwtManager {
     }
 
     public String createToken(JSONObject payload) throws Exception {
+        return createToken(payload, getEncodedHeader(), getHasher());
+    }
+
+    /**
+     * Signs several payloads with one key setup, for responses that carry a token per item.
+     */
+    public List<String> createTokens(List<JSONObject> payloads) throws Exception {
+        String encHeader = getEncodedHeader();
+        Mac hasher = getHasher();
+
+        List<String> tokens = new ArrayList<>(payloads.size());
+        for (JSONObject payload : payloads) {
+            tokens.add(createToken(payload, encHeader, hasher));
+        }
+        return tokens;
+    }
+
+    private String createToken(JSONObject payload, String encHeader, Mac hasher) throws Exception {
+        String encPayload = Base64.getUrlEncoder().encodeToString(payload.toString().getBytes("UTF-8"))
+                .replace("=", "");
+
+        String hash = Base64.getUrlEncoder().encodeToString(hasher.doFinal((encHeader + "." + encPayload).getBytes("UTF-8")))
+                .replace("=", "");
+
+        return encHeader + "." + encPayload + "." + hash;
+    }
+
+    private String getEncodedHeader() throws Exception {
         JSONObject header = new JSONObject();
         header.put("alg", "HS256");
         header.put("typ", "JWT");
 
         Encoder enc = Base64.getUrlEncoder();
 
-        String encHeader = enc.encodeToString(header.toString().getBytes("UTF-8"))
+        return enc.encodeToString(header.toString().getBytes("UTF-8"))
                 .replace("=", "");
-        String encPayload = enc.encodeToString(payload.toString().getBytes("UTF-8"))
-                .replace("=", "");
-
-        String hash = calculateHash(encHeader, encPayload);
-
-        return encHeader + "." + encPayload + "." + hash;
     }
 
     public Boolean verify(String token) {
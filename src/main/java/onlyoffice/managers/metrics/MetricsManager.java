@@ -0,0 +1,13 @@
+package onlyoffice.managers.metrics;
+
+import java.io.Serializable;
+import java.util.Map;
+
+public interface MetricsManager extends Serializable {
+    public void increment(String name);
+    public void add(String name, long value);
+    public long getCounter(String name);
+    public Map<String, Long> getCounters();
+    public void recordTiming(String name, long micros);
+    public Map<String, Map<String, Long>> getTimings();
+}
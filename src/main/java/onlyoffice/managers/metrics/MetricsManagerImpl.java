@@ -0,0 +1,110 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.metrics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.inject.Default;
+import javax.inject.Named;
+
+@Named
+@Default
+public class MetricsManagerImpl implements MetricsManager {
+    private static final int TIMING_WINDOW = 1024;
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, TimingWindow> timings = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long value) {
+        counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(value);
+    }
+
+    public long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    public void recordTiming(String name, long micros) {
+        timings.computeIfAbsent(name, key -> new TimingWindow()).add(micros);
+    }
+
+    /**
+     * Returns count and percentiles in microseconds over the last {@value #TIMING_WINDOW} samples of each timing.
+     */
+    public Map<String, Map<String, Long>> getTimings() {
+        Map<String, Map<String, Long>> snapshot = new TreeMap<>();
+        for (Map.Entry<String, TimingWindow> entry : timings.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().summarize());
+        }
+        return snapshot;
+    }
+
+    private static class TimingWindow {
+        private final long[] samples = new long[TIMING_WINDOW];
+        private long count;
+
+        private synchronized void add(long value) {
+            samples[(int) (count % TIMING_WINDOW)] = value;
+            count++;
+        }
+
+        private Map<String, Long> summarize() {
+            long[] sorted;
+            long total;
+            synchronized (this) {
+                total = count;
+                sorted = Arrays.copyOf(samples, (int) Math.min(count, TIMING_WINDOW));
+            }
+            Arrays.sort(sorted);
+
+            Map<String, Long> summary = new LinkedHashMap<>();
+            summary.put("count", total);
+            summary.put("p50", percentile(sorted, 50));
+            summary.put("p90", percentile(sorted, 90));
+            summary.put("p99", percentile(sorted, 99));
+            summary.put("max", sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+            return summary;
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(index, 0)];
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Measures the phases of a single request. Each {@link #lap(String)} closes the phase that started at the
+ * previous lap, so sequential code is instrumented with one call per phase. The result is sent as a
+ * {@code Server-Timing} header and recorded in the rolling timings of {@link MetricsManager}.
+ */
+public class ServerTiming {
+    private final String name;
+    private final long started = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private long lapStarted = started;
+
+    public ServerTiming(String name) {
+        this.name = name;
+    }
+
+    public void lap(String phase) {
+        long now = System.nanoTime();
+        phases.merge(phase, now - lapStarted, Long::sum);
+        lapStarted = now;
+    }
+
+    public String toHeader() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            header.append(phase.getKey()).append(";dur=").append(toMillis(phase.getValue())).append(", ");
+        }
+        return header.append("total;dur=").append(toMillis(System.nanoTime() - started)).toString();
+    }
+
+    /**
+     * Adds the header unless the response is already committed and records every phase as {@code name.phase}.
+     */
+    public void finish(HttpServletResponse response, MetricsManager metricsManager) {
+        if (!response.isCommitted()) {
+            response.setHeader("Server-Timing", toHeader());
+        }
+
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            metricsManager.recordTiming(name + "." + phase.getKey(), phase.getValue() / 1000);
+        }
+        metricsManager.recordTiming(name + ".total", (System.nanoTime() - started) / 1000);
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,13 @@
+package onlyoffice.managers.rendition;
+
+import com.atlassian.confluence.pages.Attachment;
+
+import java.io.File;
+import java.io.Serializable;
+
+public interface RenditionManager extends Serializable {
+    public boolean isSupported(String ext);
+    public File getRendition(Attachment attachment);
+    public boolean isFailed(Attachment attachment);
+    public void requestRendition(Attachment attachment);
+}
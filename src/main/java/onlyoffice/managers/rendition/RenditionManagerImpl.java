@@ -0,0 +1,147 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.rendition;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.convert.ConvertManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.cache.FileCache;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Produces PDF renditions of attachment versions through ConvertService and keeps them under shared home.
+ * A rendition is requested once per version; while it is generated, callers keep asking for it and get
+ * {@code null} until it is stored. Failed versions are not retried until the retry delay has passed.
+ */
+@Named
+@Default
+public class RenditionManagerImpl implements RenditionManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.rendition.RenditionManager");
+
+    private static final long RETRY_DELAY = 10 * 60 * 1000;
+
+    private final ConvertManager convertManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+    private final AttachmentUtil attachmentUtil;
+
+    private final FileCache cache;
+    private final Map<String, Boolean> inProgress = new ConcurrentHashMap<>();
+    private final Map<String, Long> failures = new ConcurrentHashMap<>();
+    private final ExecutorService executor = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(200));
+
+    @Inject
+    public RenditionManagerImpl(ConvertManager convertManager,
+            DocumentManager documentManager, UrlManager urlManager, ConfigurationManager configurationManager,
+            MetricsManager metricsManager, AttachmentUtil attachmentUtil) {
+        this.convertManager = convertManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+        this.attachmentUtil = attachmentUtil;
+
+        File directory = configurationManager.getStorageDirectory("renditions");
+        cache = new FileCache(directory, configurationManager.getLongProperty("rendition.cache.size", 2147483648L));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public boolean isSupported(String ext) {
+        return ext != null && documentManager.getDocType(ext) != null;
+    }
+
+    public File getRendition(Attachment attachment) {
+        return cache.get(getName(attachment));
+    }
+
+    public boolean isFailed(Attachment attachment) {
+        Long failed = failures.get(getName(attachment));
+        if (failed != null && failed + RETRY_DELAY < System.currentTimeMillis()) {
+            failures.remove(getName(attachment));
+            return false;
+        }
+        return failed != null;
+    }
+
+    public void requestRendition(Attachment attachment) {
+        String name = getName(attachment);
+        if (isFailed(attachment) || inProgress.putIfAbsent(name, Boolean.TRUE) != null) {
+            return;
+        }
+
+        Long attachmentId = attachment.getId();
+        String fileName = attachment.getFileName();
+        String ext = fileName.substring(fileName.lastIndexOf(".") + 1).trim().toLowerCase();
+        String key = documentManager.getKeyOfFile(attachmentId) + "_pdf";
+        String url = urlManager.getFileUri(attachmentId);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    byte[] data = convertManager.convertAndDownload(null, key, ext, "pdf", url, null, null, 0);
+                    cache.put(name, new ByteArrayInputStream(data));
+
+                    metricsManager.increment("rendition.created");
+                    log.info("PDF rendition " + name + " is created");
+                } catch (Exception e) {
+                    failures.put(name, System.currentTimeMillis());
+                    metricsManager.increment("rendition.failed");
+                    log.warn("PDF rendition of attachment " + attachmentId + " failed", e);
+                } finally {
+                    inProgress.remove(name);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(name);
+            log.warn("Rendition queue is full, attachment " + attachmentId + " will be rendered on a later request");
+        }
+    }
+
+    private String getName(Attachment attachment) {
+        // a force save rewrites the current version, the tag tells the contents apart
+        return attachmentUtil.getVersionTag(attachment) + ".pdf";
+    }
+}
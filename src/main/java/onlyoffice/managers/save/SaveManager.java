@@ -0,0 +1,15 @@
+package onlyoffice.managers.save;
+
+import com.atlassian.confluence.user.ConfluenceUser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+public interface SaveManager extends Serializable {
+    public void commit(Long attachmentId, byte[] data, String digest, String history, byte[] diff,
+            ConfluenceUser user, boolean forceSave) throws IOException;
+    public void enqueue(Long attachmentId, ConfluenceUser user, boolean forceSave, String currentExt,
+            String convertToExt, byte[] data, String history, byte[] diff) throws IOException;
+    public File getPendingFile(String id);
+}
@@ -0,0 +1,361 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.save;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.convert.ConvertManager;
+import onlyoffice.managers.download.DownloadManager;
+import onlyoffice.managers.extraction.TextExtractionManager;
+import onlyoffice.managers.history.HistoryManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUpdate;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Commits the documents returned by the save callback.
+ *
+ * A document that comes back in another format than the attachment's has to be converted first, which can take
+ * longer than the Document Server waits for the callback. Such a save is handed off: the returned document and
+ * its changes are stored under shared home before the callback is answered, and a single worker converts and
+ * commits the pending saves in the order they arrived. The worker serves the stored document to ConvertService
+ * through the file provider. Pending saves left by a restart are picked up again when the plugin starts;
+ * one that keeps failing is set aside with a .failed marker instead of being dropped.
+ */
+@Named
+@Default
+public class SaveManagerImpl implements SaveManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.save.SaveManager");
+
+    private static final String LOCK_PREFIX = "onlyoffice.pending-save.";
+
+    @ComponentImport
+    private final ClusterLockService clusterLockService;
+    @ComponentImport
+    private final TransactionTemplate transactionTemplate;
+    @ComponentImport
+    private final UserAccessor userAccessor;
+
+    private final AttachmentUtil attachmentUtil;
+    private final ConvertManager convertManager;
+    private final DownloadManager downloadManager;
+    private final UrlManager urlManager;
+    private final HistoryManager historyManager;
+    private final TextExtractionManager textExtractionManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private final File directory;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "onlyoffice-pending-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public SaveManagerImpl(ClusterLockService clusterLockService, TransactionTemplate transactionTemplate,
+            UserAccessor userAccessor, AttachmentUtil attachmentUtil, ConvertManager convertManager,
+            DownloadManager downloadManager, UrlManager urlManager, HistoryManager historyManager,
+            TextExtractionManager textExtractionManager, ConfigurationManager configurationManager,
+            MetricsManager metricsManager) {
+        this.clusterLockService = clusterLockService;
+        this.transactionTemplate = transactionTemplate;
+        this.userAccessor = userAccessor;
+        this.attachmentUtil = attachmentUtil;
+        this.convertManager = convertManager;
+        this.downloadManager = downloadManager;
+        this.urlManager = urlManager;
+        this.historyManager = historyManager;
+        this.textExtractionManager = textExtractionManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+
+        directory = configurationManager.getStorageDirectory("pending-saves");
+    }
+
+    @PostConstruct
+    public void init() {
+        File[] pending = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (pending == null) {
+            return;
+        }
+
+        Arrays.sort(pending, Comparator.comparingLong(File::lastModified));
+        for (File file : pending) {
+            String id = file.getName().substring(0, file.getName().length() - ".json".length());
+            log.info("Resuming pending save " + id);
+            worker.execute(() -> process(id));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * Writes the document returned by the Document Server into the attachment, unless its content is unchanged,
+     * and brings the history index and the extracted text up to date. Runs in a transaction of its own,
+     * as the caller has the document at hand already and waits for nothing else.
+     */
+    public void commit(Long attachmentId, byte[] data, String digest, String history, byte[] diff,
+            ConfluenceUser user, boolean forceSave) throws IOException {
+        try {
+            transactionTemplate.execute(new TransactionCallback<Object>() {
+                @Override
+                public Object doInTransaction() {
+                    try {
+                        commitUpdate(attachmentUtil.createUpdate(attachmentId), data, digest, history, diff, user,
+                                forceSave);
+                        return null;
+                    } catch (IOException e) {
+                        throw new TransactionFailure(e);
+                    }
+                }
+            });
+        } catch (TransactionFailure e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private void commitUpdate(AttachmentUpdate update, byte[] data, String digest, String history, byte[] diff,
+            ConfluenceUser user, boolean forceSave) throws IOException {
+        Long attachmentId = update.getAttachment().getId();
+
+        Boolean forceSaveVersion = update.getPropertyAsBoolean("onlyoffice-force-save");
+
+        if (digest.equals(attachmentUtil.getContentDigest(update.getAttachment()))) {
+            log.info("Document " + attachmentId + " is unchanged, skipping the save");
+            metricsManager.increment(forceSave ? "save.forcesave.skipped" : "save.skipped");
+
+            if (!forceSave) {
+                update.setCollaborativeEditingKey(null);
+                if (forceSaveVersion) {
+                    update.removeProperty("onlyoffice-force-save");
+                }
+            }
+
+            update.setContentDigest(digest);
+            attachmentUtil.commitUpdate(update);
+            return;
+        }
+
+        if (forceSave) {
+            if (forceSaveVersion) {
+                update.updateData(new ByteArrayInputStream(data), data.length, user);
+                update.removeChanges();
+            } else {
+                String key = update.getCollaborativeEditingKey();
+                update.setCollaborativeEditingKey(null);
+
+                update.saveAsNewVersion(new ByteArrayInputStream(data), data.length, user);
+                update.setCollaborativeEditingKey(key);
+                update.setProperty("onlyoffice-force-save", "true");
+            }
+        } else {
+            update.setCollaborativeEditingKey(null);
+
+            if (forceSaveVersion) {
+                update.updateData(new ByteArrayInputStream(data), data.length, user);
+                update.removeProperty("onlyoffice-force-save");
+                update.removeChanges();
+            } else {
+                update.saveAsNewVersion(new ByteArrayInputStream(data), data.length, user);
+            }
+        }
+
+        update.setContentDigest(digest);
+        update.saveChanges(history, diff);
+
+        attachmentUtil.commitUpdate(update);
+        metricsManager.increment(forceSave ? "save.forcesave.written" : "save.written");
+
+        try {
+            historyManager.recordVersion(attachmentId);
+        } catch (Exception e) {
+            // the version is saved already, the index catches up when the history is opened
+            log.warn("Couldn't update the history index of " + attachmentId + ": " + e.getMessage());
+        }
+
+        if (textExtractionManager.isSupported(update.getAttachment().getFileExtension())) {
+            textExtractionManager.requestExtraction(attachmentId);
+        }
+
+        if (forceSave || forceSaveVersion) {
+            File convertedFile = attachmentUtil.getConvertedFile(attachmentId);
+            if (convertedFile.exists()) convertedFile.delete();
+        }
+    }
+
+    public void enqueue(Long attachmentId, ConfluenceUser user, boolean forceSave, String currentExt,
+            String convertToExt, byte[] data, String history, byte[] diff) throws IOException {
+        String id = UUID.randomUUID().toString();
+        directory.mkdirs();
+
+        Files.write(getFile(id, ".data").toPath(), data);
+        if (diff != null) {
+            Files.write(getFile(id, ".diff").toPath(), diff);
+        }
+
+        JSONObject state = new JSONObject();
+        try {
+            state.put("attachmentId", attachmentId);
+            state.put("user", user.getName());
+            state.put("forceSave", forceSave);
+            state.put("currentExt", currentExt);
+            state.put("convertToExt", convertToExt);
+            state.put("history", history);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        // the state file is written last and renamed into place, so a pending save is never seen half written
+        File temp = getFile(id, ".json.tmp");
+        Files.write(temp.toPath(), state.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), getFile(id, ".json").toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        metricsManager.increment("save.pending.stored");
+        log.info("Save of attachment " + attachmentId + " is pending as " + id);
+        worker.execute(() -> process(id));
+    }
+
+    public File getPendingFile(String id) {
+        if (id == null || !id.matches("[0-9a-f-]{36}")) {
+            return null;
+        }
+
+        File file = getFile(id, ".data");
+        return file.isFile() ? file : null;
+    }
+
+    private void process(String id) {
+        // on a cluster every node resumes the pending saves of the shared home, only one may commit each
+        ClusterLock lock = clusterLockService.getLockForName(LOCK_PREFIX + id);
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            long attempts = Math.max(configurationManager.getLongProperty("save.pending.attempts", 5), 1);
+            for (int attempt = 1; getFile(id, ".json").isFile(); attempt++) {
+                try {
+                    commitPending(id);
+                    metricsManager.increment("save.pending.committed");
+                    return;
+                } catch (Exception e) {
+                    if (attempt >= attempts) {
+                        metricsManager.increment("save.pending.failed");
+                        log.error("Pending save " + id + " failed, it is kept in " + directory, e);
+                        getFile(id, ".json").renameTo(getFile(id, ".failed"));
+                        return;
+                    }
+
+                    log.warn("Pending save " + id + " failed, attempt " + attempt + " of " + attempts + ": " + e.getMessage());
+                    // retrying here rather than later keeps the saves of a document in order
+                    TimeUnit.SECONDS.sleep(configurationManager.getLongProperty("save.pending.retry.delay", 30) * attempt);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitPending(String id) throws Exception {
+        JSONObject state = new JSONObject(new String(Files.readAllBytes(getFile(id, ".json").toPath()), StandardCharsets.UTF_8));
+        Long attachmentId = state.getLong("attachmentId");
+
+        if (attachmentUtil.getAttachment(attachmentId) == null) {
+            log.warn("Attachment " + attachmentId + " of pending save " + id + " no longer exists");
+            delete(id);
+            return;
+        }
+
+        JSONObject response = convertManager.convertAndWait(id, state.getString("currentExt"),
+                state.getString("convertToExt"), urlManager.getPendingSaveUri(id), null);
+
+        MessageDigest digest = MessageDigest.getInstance(AttachmentUtil.DIGEST_ALGORITHM);
+        byte[] data = downloadManager.download(response.getString("fileUrl"), digest);
+
+        File diffFile = getFile(id, ".diff");
+        byte[] diff = diffFile.isFile() ? Files.readAllBytes(diffFile.toPath()) : null;
+        String history = state.has("history") ? state.getString("history") : null;
+
+        ConfluenceUser user = transactionTemplate.execute(new TransactionCallback<ConfluenceUser>() {
+            @Override
+            public ConfluenceUser doInTransaction() {
+                return userAccessor.getUserByName(state.optString("user"));
+            }
+        });
+
+        commit(attachmentId, data, Hex.encodeHexString(digest.digest()), history, diff, user,
+                state.getBoolean("forceSave"));
+        delete(id);
+
+        log.info("Pending save " + id + " of attachment " + attachmentId + " is committed");
+    }
+
+    private void delete(String id) {
+        getFile(id, ".json").delete();
+        getFile(id, ".data").delete();
+        getFile(id, ".diff").delete();
+    }
+
+    private File getFile(String id, String suffix) {
+        return new File(directory, id + suffix);
+    }
+
+    private static class TransactionFailure extends RuntimeException {
+        TransactionFailure(IOException cause) {
+            super(cause);
+        }
+    }
+}
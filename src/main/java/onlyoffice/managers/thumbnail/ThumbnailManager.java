@@ -0,0 +1,13 @@
+package onlyoffice.managers.thumbnail;
+
+import com.atlassian.confluence.pages.Attachment;
+
+import java.io.File;
+import java.io.Serializable;
+
+public interface ThumbnailManager extends Serializable {
+    public boolean isSupported(Attachment attachment);
+    public boolean isSize(String size);
+    public File getThumbnail(Attachment attachment, String size);
+    public void requestThumbnail(Attachment attachment, String size);
+}
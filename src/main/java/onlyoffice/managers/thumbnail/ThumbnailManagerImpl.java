@@ -0,0 +1,156 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.thumbnail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.conditions.IsOfficeFileAttachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.convert.ConvertManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.managers.url.UrlManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import onlyoffice.utils.cache.FileCache;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Default;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Renders first-page PNG thumbnails of attachment versions through ConvertService at a few fixed sizes.
+ * Thumbnails are generated one at a time on a bounded queue and stored under shared home; the least
+ * recently served ones are evicted when the cache grows over its limit.
+ */
+@Named
+@Default
+public class ThumbnailManagerImpl implements ThumbnailManager {
+    private final Logger log = LogManager.getLogger("onlyoffice.managers.thumbnail.ThumbnailManager");
+
+    private static final long RETRY_DELAY = 10 * 60 * 1000;
+    private static final Map<String, Integer> SIZES = new HashMap<String, Integer>() {{
+        put("small", 96);
+        put("medium", 240);
+        put("large", 480);
+    }};
+
+    private final ConvertManager convertManager;
+    private final DocumentManager documentManager;
+    private final UrlManager urlManager;
+    private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+    private final AttachmentUtil attachmentUtil;
+
+    private final FileCache cache;
+    private final Map<String, Boolean> inProgress = new ConcurrentHashMap<>();
+    private final Map<String, Long> failures = new ConcurrentHashMap<>();
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(500));
+
+    @Inject
+    public ThumbnailManagerImpl(ConvertManager convertManager,
+            DocumentManager documentManager, UrlManager urlManager, ConfigurationManager configurationManager,
+            MetricsManager metricsManager, AttachmentUtil attachmentUtil) {
+        this.convertManager = convertManager;
+        this.documentManager = documentManager;
+        this.urlManager = urlManager;
+        this.configurationManager = configurationManager;
+        this.metricsManager = metricsManager;
+        this.attachmentUtil = attachmentUtil;
+
+        File directory = configurationManager.getStorageDirectory("thumbnails");
+        cache = new FileCache(directory, configurationManager.getLongProperty("thumbnail.cache.size", 268435456L));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public boolean isSupported(Attachment attachment) {
+        return IsOfficeFileAttachment.isOfficeFile(attachment, documentManager);
+    }
+
+    public boolean isSize(String size) {
+        return size != null && SIZES.containsKey(size);
+    }
+
+    public File getThumbnail(Attachment attachment, String size) {
+        return cache.get(getName(attachment, size));
+    }
+
+    public void requestThumbnail(Attachment attachment, String size) {
+        String name = getName(attachment, size);
+        Long failed = failures.get(name);
+        if (failed != null) {
+            if (failed + RETRY_DELAY > System.currentTimeMillis()) {
+                return;
+            }
+            failures.remove(name);
+        }
+
+        if (inProgress.putIfAbsent(name, Boolean.TRUE) != null) {
+            return;
+        }
+
+        Long attachmentId = attachment.getId();
+        String ext = attachment.getFileExtension();
+        int box = SIZES.get(size);
+        String key = documentManager.getKeyOfFile(attachmentId) + "_thumb" + box;
+        String url = urlManager.getFileUri(attachmentId);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    byte[] data = convertManager.createThumbnail(key, ext, url, box, box);
+                    cache.put(name, new ByteArrayInputStream(data));
+
+                    metricsManager.increment("thumbnail.created");
+                    log.info("Thumbnail " + name + " is created");
+                } catch (Exception e) {
+                    failures.put(name, System.currentTimeMillis());
+                    metricsManager.increment("thumbnail.failed");
+                    log.warn("Thumbnail of attachment " + attachmentId + " failed", e);
+                } finally {
+                    inProgress.remove(name);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(name);
+            log.debug("Thumbnail queue is full, attachment " + attachmentId + " will be rendered on a later request");
+        }
+    }
+
+    private String getName(Attachment attachment, String size) {
+        return attachmentUtil.getVersionTag(attachment) + "-" + size + ".png";
+    }
+}
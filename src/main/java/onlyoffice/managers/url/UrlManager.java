@@ -1,5 +1,7 @@
 package onlyoffice.managers.url;
 
+import com.atlassian.confluence.pages.Attachment;
+
 import javax.servlet.http.HttpServletRequest;
 import java.io.Serializable;
 
@@ -7,7 +9,10 @@ public interface UrlManager extends Serializable {
     public String getPublicDocEditorUrl();
     public String getInnerDocEditorUrl();
     public String getFileUri(Long attachmentId);
+    public String getFileUri(Attachment attachment);
+    public String getImageUri(Attachment attachment);
     public String getAttachmentDiffUri(Long attachmentId);
+    public String getPendingSaveUri(String id);
     public String getHistoryInfoUri(Long attachmentId);
     public String getHistoryDataUri(Long attachmentId);
     public String getAttachmentDataUri();
@@ -15,5 +20,6 @@ public interface UrlManager extends Serializable {
     public String getCallbackUrl(Long attachmentId);
     public String getGobackUrl(Long attachmentId, HttpServletRequest request);
     public String getCreateUri(Long pageId, String ext);
+    public String getViewerUri(Long attachmentId);
     public String replaceDocEditorURLToInternal(String url);
 }
@@ -24,6 +24,7 @@ import com.atlassian.confluence.pages.AttachmentManager;
 import com.atlassian.spring.container.ContainerManager;
 import onlyoffice.managers.configuration.ConfigurationManager;
 import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.utils.attachment.AttachmentUtil;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
@@ -48,6 +49,7 @@ public class UrlManagerImpl implements UrlManager {
     private final String historyServlet = "plugins/servlet/onlyoffice/history";
     private final String fileProviderServlet = "plugins/servlet/onlyoffice/file-provider";
     private final String APIServlet = "plugins/servlet/onlyoffice/api";
+    private final String viewerServlet = "plugins/servlet/onlyoffice/viewer";
 
     @ComponentImport
     private final PluginSettingsFactory pluginSettingsFactory;
@@ -57,14 +59,17 @@ public class UrlManagerImpl implements UrlManager {
     private final PluginSettings pluginSettings;
     private final ConfigurationManager configurationManager;
     private final DocumentManager documentManager;
+    private final AttachmentUtil attachmentUtil;
 
     @Inject
     public UrlManagerImpl(PluginSettingsFactory pluginSettingsFactory, SettingsManager settingsManager,
-                          ConfigurationManager configurationManager, DocumentManager documentManager) {
+                          ConfigurationManager configurationManager, DocumentManager documentManager,
+                          AttachmentUtil attachmentUtil) {
         this.pluginSettingsFactory = pluginSettingsFactory;
         this.settingsManager = settingsManager;
         this.configurationManager = configurationManager;
         this.documentManager = documentManager;
+        this.attachmentUtil = attachmentUtil;
         pluginSettings = pluginSettingsFactory.createGlobalSettings();
     }
 
@@ -89,17 +94,50 @@ public class UrlManagerImpl implements UrlManager {
     }
 
     public String getFileUri(Long attachmentId) {
-        String hash = documentManager.createHash(Long.toString(attachmentId));
+        Attachment attachment = attachmentUtil.getAttachment(attachmentId);
+        if (attachment == null) {
+            String hash = documentManager.createHash(Long.toString(attachmentId));
+            return getConfluenceBaseUrl() + fileProviderServlet + "?vkey=" + GeneralUtil.urlEncode(hash);
+        }
+
+        return getFileUri(attachment);
+    }
+
+    /**
+     * The URL names the version it was issued for, so its response never changes and may be cached for good.
+     */
+    public String getFileUri(Attachment attachment) {
+        String hash = documentManager.createHash(Long.toString(attachment.getId()));
 
-        String fileUri = getConfluenceBaseUrl() + fileProviderServlet + "?vkey=" + GeneralUtil.urlEncode(hash);
+        String fileUri = getConfluenceBaseUrl() + fileProviderServlet + "?vkey=" + GeneralUtil.urlEncode(hash)
+                + "&ver=" + attachmentUtil.getVersionTag(attachment);
         log.info("fileUrl " + fileUri);
 
         return fileUri;
     }
 
+    /**
+     * The URL of the image to insert into a document in place of the attachment, see ImageManager.
+     */
+    public String getImageUri(Attachment attachment) {
+        return getFileUri(attachment) + "&type=image";
+    }
+
+    /**
+     * The URL of a document the save callback stored for conversion, see SaveManager.
+     */
+    public String getPendingSaveUri(String id) {
+        String hash = documentManager.createHash(id);
+        return getConfluenceBaseUrl() + fileProviderServlet + "?type=pending&vkey=" + GeneralUtil.urlEncode(hash);
+    }
+
     public String getAttachmentDiffUri(Long attachmentId) {
         String hash = documentManager.createHash(Long.toString(attachmentId));
         String diffAttachmentUrl = getConfluenceBaseUrl() + historyServlet + "?type=diff&vkey=" + GeneralUtil.urlEncode(hash);
+        Attachment diff = attachmentUtil.getAttachmentDiff(attachmentId);
+        if (diff != null) {
+            diffAttachmentUrl += "&ver=" + attachmentUtil.getVersionTag(diff);
+        }
 
         return diffAttachmentUrl;
     }
@@ -176,6 +214,10 @@ public class UrlManagerImpl implements UrlManager {
         return getConfluenceBaseUrl() + docEditorServlet + "?pageId=" + pageId + "&fileExt=" + targetExt;
     }
 
+    public String getViewerUri(Long attachmentId) {
+        return settingsManager.getGlobalSettings().getBaseUrl() + "/" + viewerServlet + "?attachmentId=" + attachmentId;
+    }
+
     private String getConfluenceBaseUrl() {
         String url = (String) pluginSettings.get("onlyoffice.confUrl");
         if (url == null || url.isEmpty()) {
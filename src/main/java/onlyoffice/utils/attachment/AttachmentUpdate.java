@@ -0,0 +1,187 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.utils.attachment;
+
+import com.atlassian.confluence.content.ContentProperties;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.user.ConfluenceUser;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects property changes, version writes and history artifacts for one attachment.
+ * Nothing is written until the update is passed to {@link AttachmentUtil#commitUpdate(AttachmentUpdate)},
+ * which applies all changes in the order they were added within a single transaction.
+ */
+public class AttachmentUpdate {
+    public enum Type {
+        SET_PROPERTY,
+        REMOVE_PROPERTY,
+        SAVE_AS_NEW_VERSION,
+        UPDATE_DATA,
+        SET_CONTENT_DIGEST,
+        SAVE_CHANGES,
+        REMOVE_CHANGES
+    }
+
+    public static class Change {
+        private final Type type;
+        private String name;
+        private String value;
+        private InputStream data;
+        private int size;
+        private ConfluenceUser user;
+        private byte[] diff;
+
+        private Change(Type type) {
+            this.type = type;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public InputStream getData() {
+            return data;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public ConfluenceUser getUser() {
+            return user;
+        }
+
+        public byte[] getDiff() {
+            return diff;
+        }
+    }
+
+    private final Attachment attachment;
+    private final List<Change> changes = new ArrayList<>();
+
+    AttachmentUpdate(Attachment attachment) {
+        this.attachment = attachment;
+    }
+
+    public Attachment getAttachment() {
+        return attachment;
+    }
+
+    public String getProperty(String name) {
+        ContentProperties contentProperties = attachment.getProperties();
+        return contentProperties.getStringProperty(name);
+    }
+
+    public boolean getPropertyAsBoolean(String name) {
+        return Boolean.parseBoolean(getProperty(name));
+    }
+
+    public String getCollaborativeEditingKey() {
+        return getProperty(AttachmentUtilImpl.COLLABORATIVE_EDITING_KEY);
+    }
+
+    public AttachmentUpdate setProperty(String name, String value) {
+        Change change = new Change(Type.SET_PROPERTY);
+        change.name = name;
+        change.value = value;
+        changes.add(change);
+        return this;
+    }
+
+    public AttachmentUpdate removeProperty(String name) {
+        Change change = new Change(Type.REMOVE_PROPERTY);
+        change.name = name;
+        changes.add(change);
+        return this;
+    }
+
+    public AttachmentUpdate setCollaborativeEditingKey(String key) {
+        if (key == null || key.isEmpty()) {
+            return removeProperty(AttachmentUtilImpl.COLLABORATIVE_EDITING_KEY);
+        } else {
+            return setProperty(AttachmentUtilImpl.COLLABORATIVE_EDITING_KEY, key);
+        }
+    }
+
+    public AttachmentUpdate saveAsNewVersion(InputStream data, int size, ConfluenceUser user) {
+        Change change = new Change(Type.SAVE_AS_NEW_VERSION);
+        change.data = data;
+        change.size = size;
+        change.user = user;
+        changes.add(change);
+        return this;
+    }
+
+    public AttachmentUpdate updateData(InputStream data, int size, ConfluenceUser user) {
+        Change change = new Change(Type.UPDATE_DATA);
+        change.data = data;
+        change.size = size;
+        change.user = user;
+        changes.add(change);
+        return this;
+    }
+
+    /**
+     * Records the digest of the data the attachment holds once the preceding changes are applied.
+     * The digest is stored together with the version it was computed for, so a version uploaded
+     * outside the editor never inherits it.
+     */
+    public AttachmentUpdate setContentDigest(String digest) {
+        Change change = new Change(Type.SET_CONTENT_DIGEST);
+        change.value = digest;
+        changes.add(change);
+        return this;
+    }
+
+    public AttachmentUpdate saveChanges(String history, byte[] diff) {
+        if (history != null && !history.isEmpty() && diff != null) {
+            Change change = new Change(Type.SAVE_CHANGES);
+            change.value = history;
+            change.diff = diff;
+            changes.add(change);
+        }
+        return this;
+    }
+
+    public AttachmentUpdate removeChanges() {
+        changes.add(new Change(Type.REMOVE_CHANGES));
+        return this;
+    }
+
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+}
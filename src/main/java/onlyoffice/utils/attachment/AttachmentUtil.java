@@ -11,25 +11,35 @@ import java.io.Serializable;
 import java.util.List;
 
 public interface AttachmentUtil extends Serializable {
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
     public boolean checkAccess(Long attachmentId, User user, boolean forEdit);
     public boolean checkAccess(Attachment attachment, User user, boolean forEdit);
     public boolean checkAccessCreate(User user, Long pageId);
+    public List<Attachment> getPermittedAttachments(List<Long> attachmentIds, User user);
     public void saveAttachmentAsNewVersion(Long attachmentId, InputStream attachmentData, int size, ConfluenceUser user)
             throws IOException, IllegalArgumentException;
     public void updateAttachment(Long attachmentId, InputStream attachmentData, int size, ConfluenceUser user);
-    public void saveAttachmentChanges (Long attachmentId, String history, String changesUrl) throws Exception;
     public void removeAttachmentChanges (Long attachmentId);
+    public AttachmentUpdate createUpdate (Long attachmentId);
+    public Attachment getAttachment (Long attachmentId);
+    public String getVersionTag (Attachment attachment);
+    public void commitUpdate (AttachmentUpdate update) throws IOException;
     public InputStream getAttachmentData(Long attachmentId);
     public String getMediaType(Long attachmentId);
     public String getFileName(Long attachmentId);
     public String getFileExt(Long attachmentId);
     public String getHashCode(Long attachmentId);
+    public String getContentDigest (Attachment attachment) throws IOException;
+    public boolean isSavedByEditor (Attachment attachment);
     public String getCollaborativeEditingKey (Long attachmentId);
     public void setCollaborativeEditingKey (Long attachmentId, String key);
     public String getProperty (Long attachmentId, String name);
     public boolean getPropertyAsBoolean (Long attachmentId, String name);
     public void setProperty (Long attachmentId, String name, String value);
     public void removeProperty (Long attachmentId, String name);
+    public String getTextProperty (Long attachmentId, String name);
+    public void setTextProperty (Long attachmentId, String name, String value);
     public List<Attachment> getAllVersions (Long attachmentId);
     public int getVersion (Long attachmentId);
     public Attachment getAttachmentChanges (Long attachmentId);
@@ -40,4 +50,5 @@ public interface AttachmentUtil extends Serializable {
     public String getAttachmentSpaceKey (Long attachmentId);
     public Attachment createNewAttachment (String title, String mimeType, InputStream file, int size, Long pageId, ConfluenceUser user) throws IOException;
     public File getConvertedFile(Long attachmentId);
+    public File getAttachmentFile(Attachment attachment);
 }
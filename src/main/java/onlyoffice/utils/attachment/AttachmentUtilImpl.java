@@ -22,10 +22,15 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.atlassian.confluence.content.ContentProperties;
 import com.atlassian.confluence.pages.Page;
@@ -37,13 +42,8 @@ import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.transaction.TransactionCallback;
 import com.atlassian.sal.api.transaction.TransactionTemplate;
 import onlyoffice.managers.configuration.ConfigurationManager;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpException;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
+import onlyoffice.managers.metrics.MetricsManager;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
@@ -66,6 +66,11 @@ public class AttachmentUtilImpl implements AttachmentUtil {
     private final Logger log = LogManager.getLogger("onlyoffice.utils.attachment.AttachmentUtil");
     private static final HierarchicalContentFileSystemHelper fileSystemHelper = new HierarchicalContentFileSystemHelper();
 
+    static final String COLLABORATIVE_EDITING_KEY = "onlyoffice-collaborative-editor-key";
+    static final String CHANGES_FILE_NAME = "onlyoffice-changes.json";
+    static final String DIFF_FILE_NAME = "onlyoffice-diff.zip";
+    static final String CONTENT_DIGEST = "onlyoffice-content-digest";
+
     @ComponentImport
     private final AttachmentManager attachmentManager;
     @ComponentImport
@@ -76,15 +81,20 @@ public class AttachmentUtilImpl implements AttachmentUtil {
     private final BootstrapManager bootstrapManager;
 
     private final ConfigurationManager configurationManager;
+    private final MetricsManager metricsManager;
+
+    private volatile File attachmentsDirectory;
 
     @Inject
     public AttachmentUtilImpl(AttachmentManager attachmentManager, TransactionTemplate transactionTemplate,
-            ConfigurationManager configurationManager, PageManager pageManager, BootstrapManager bootstrapManager) {
+            ConfigurationManager configurationManager, PageManager pageManager, BootstrapManager bootstrapManager,
+            MetricsManager metricsManager) {
         this.attachmentManager = attachmentManager;
         this.transactionTemplate = transactionTemplate;
         this.configurationManager = configurationManager;
         this.pageManager = pageManager;
         this.bootstrapManager = bootstrapManager;
+        this.metricsManager = metricsManager;
     }
 
     public boolean checkAccess(Long attachmentId, User user, boolean forEdit) {
@@ -92,9 +102,7 @@ public class AttachmentUtilImpl implements AttachmentUtil {
             return false;
         }
 
-        Attachment attachment = attachmentManager.getAttachment(attachmentId);
-
-        return checkAccess(attachment, user, forEdit);
+        return inTransaction(() -> checkAccess(attachmentManager.getAttachment(attachmentId), user, forEdit));
     }
 
     public boolean checkAccess(Attachment attachment, User user, boolean forEdit) {
@@ -114,6 +122,29 @@ public class AttachmentUtilImpl implements AttachmentUtil {
         }
     }
 
+    /**
+     * Loads the attachments and keeps those the user may view, in the order of the ids.
+     * Permissions are evaluated for all of them in one call, rather than one check per attachment.
+     */
+    public List<Attachment> getPermittedAttachments(List<Long> attachmentIds, User user) {
+        if (user == null) {
+            return new ArrayList<>();
+        }
+
+        return inTransaction(() -> {
+            List<Attachment> attachments = new ArrayList<>(attachmentIds.size());
+            for (Long attachmentId : attachmentIds) {
+                Attachment attachment = attachmentManager.getAttachment(attachmentId);
+                if (attachment != null) {
+                    attachments.add(attachment);
+                }
+            }
+
+            PermissionManager permissionManager = (PermissionManager) ContainerManager.getComponent("permissionManager");
+            return permissionManager.getPermittedEntities(user, Permission.VIEW, attachments);
+        });
+    }
+
     public boolean checkAccessCreate(User user, Long pageId) {
         if (user == null) {
             return false;
@@ -121,10 +152,10 @@ public class AttachmentUtilImpl implements AttachmentUtil {
 
         PermissionManager permissionManager = (PermissionManager) ContainerManager.getComponent("permissionManager");
 
-        Page page = pageManager.getPage(pageId);
-        boolean access = permissionManager.hasCreatePermission(user, page, Attachment.class);
-
-        return access;
+        return inTransaction(() -> {
+            Page page = pageManager.getPage(pageId);
+            return permissionManager.hasCreatePermission(user, page, Attachment.class);
+        });
     }
 
     public void saveAttachmentAsNewVersion(Long attachmentId, InputStream attachmentData, int size, ConfluenceUser user)
@@ -158,51 +189,6 @@ public class AttachmentUtilImpl implements AttachmentUtil {
         });
     }
 
-    public void saveAttachmentChanges (Long attachmentId, String history, String changesUrl) throws Exception {
-        Attachment attachment = attachmentManager.getAttachment(attachmentId);
-
-        if (history != null && !history.isEmpty() && changesUrl != null && !changesUrl.isEmpty()) {
-            InputStream changesStream = new ByteArrayInputStream(history.getBytes(StandardCharsets.UTF_8));
-            Attachment changes = new Attachment("onlyoffice-changes.json", "application/json", changesStream.available(), "");
-            changes.setContainer(attachment.getContainer());
-            changes.setHidden(true);
-
-            try (CloseableHttpClient httpClient = configurationManager.getHttpClient()) {
-                HttpGet request = new HttpGet(changesUrl);
-
-                try (CloseableHttpResponse response = httpClient.execute(request)) {
-                    int status = response.getStatusLine().getStatusCode();
-                    HttpEntity entity = response.getEntity();
-
-                    if (status == HttpStatus.SC_OK) {
-                        byte[] bytes = IOUtils.toByteArray(entity.getContent());
-                        InputStream streamDiff = new ByteArrayInputStream(bytes);
-
-                        Attachment diff = new Attachment("onlyoffice-diff.zip", "application/zip", bytes.length, "");
-                        diff.setContainer(attachment.getContainer());
-                        diff.setHidden(true);
-
-                        attachment.addAttachment(changes);
-                        attachment.addAttachment(diff);
-
-                        AttachmentDao attDao = attachmentManager.getAttachmentDao();
-                        Object result = transactionTemplate.execute(new TransactionCallback() {
-                            @Override
-                            public Object doInTransaction() {
-                                attDao.saveNewAttachment(changes, changesStream);
-                                attDao.saveNewAttachment(diff, streamDiff);
-                                attDao.updateAttachment(attachment);
-                                return null;
-                            }
-                        });
-                    } else {
-                        throw new HttpException("Docserver returned code " + status);
-                    }
-                }
-            }
-        }
-    }
-
     public void removeAttachmentChanges (Long attachmentId) {
         Attachment changes = getAttachmentChanges(attachmentId);
         Attachment diff = getAttachmentDiff(attachmentId);
@@ -218,6 +204,107 @@ public class AttachmentUtilImpl implements AttachmentUtil {
         });
     }
 
+    public Attachment getAttachment (Long attachmentId) {
+        return attachmentManager.getAttachment(attachmentId);
+    }
+
+    /**
+     * Identifies the data an attachment version holds. The creation date is part of it because a force save
+     * replaces the data of the version in place, and sets the date anew.
+     */
+    public String getVersionTag (Attachment attachment) {
+        return Long.toString(attachment.getId(), 36) + "." + attachment.getVersion() + "."
+                + Long.toString(attachment.getCreationDate().getTime(), 36);
+    }
+
+    public AttachmentUpdate createUpdate (Long attachmentId) {
+        Attachment attachment = attachmentManager.getAttachment(attachmentId);
+        return new AttachmentUpdate(attachment);
+    }
+
+    public void commitUpdate (AttachmentUpdate update) throws IOException {
+        if (update.isEmpty()) {
+            return;
+        }
+
+        Attachment attachment = update.getAttachment();
+        AttachmentDao attDao = attachmentManager.getAttachmentDao();
+
+        try {
+            Object result = transactionTemplate.execute(new TransactionCallback() {
+                @Override
+                public Object doInTransaction() {
+                    for (AttachmentUpdate.Change change : update.getChanges()) {
+                        applyChange(attachment, change, attDao);
+                    }
+                    attDao.updateAttachment(attachment);
+                    return null;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void applyChange (Attachment attachment, AttachmentUpdate.Change change, AttachmentDao attDao) {
+        switch (change.getType()) {
+            case SET_PROPERTY:
+                attachment.getProperties().setStringProperty(change.getName(), change.getValue());
+                break;
+            case REMOVE_PROPERTY:
+                attachment.getProperties().removeProperty(change.getName());
+                break;
+            case SAVE_AS_NEW_VERSION:
+                Attachment oldAttachment = attachment.copy();
+                attachment.setFileSize(change.getSize());
+
+                AuthenticatedUserThreadLocal.set(change.getUser());
+
+                try {
+                    attachmentManager.saveAttachment(attachment, oldAttachment, change.getData());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                break;
+            case UPDATE_DATA:
+                attachment.setFileSize(change.getSize());
+                attachment.setCreator(change.getUser());
+                attachment.setCreationDate(Calendar.getInstance().getTime());
+
+                attDao.replaceAttachmentData(attachment, change.getData());
+                break;
+            case SET_CONTENT_DIGEST:
+                attachment.getProperties().setStringProperty(CONTENT_DIGEST, attachment.getVersion() + ":" + change.getValue());
+                break;
+            case SAVE_CHANGES:
+                byte[] history = change.getValue().getBytes(StandardCharsets.UTF_8);
+
+                Attachment changes = new Attachment(CHANGES_FILE_NAME, "application/json", history.length, "");
+                changes.setContainer(attachment.getContainer());
+                changes.setHidden(true);
+
+                Attachment diff = new Attachment(DIFF_FILE_NAME, "application/zip", change.getDiff().length, "");
+                diff.setContainer(attachment.getContainer());
+                diff.setHidden(true);
+
+                attachment.addAttachment(changes);
+                attachment.addAttachment(diff);
+
+                attDao.saveNewAttachment(changes, new ByteArrayInputStream(history));
+                attDao.saveNewAttachment(diff, new ByteArrayInputStream(change.getDiff()));
+                break;
+            case REMOVE_CHANGES:
+                for (String name : new String[] {CHANGES_FILE_NAME, DIFF_FILE_NAME}) {
+                    Attachment child = attachment.getAttachmentNamed(name);
+                    if (child != null) {
+                        attachment.removeAttachment(child);
+                        attDao.removeAttachmentFromServer(child);
+                    }
+                }
+                break;
+        }
+    }
+
     public InputStream getAttachmentData(Long attachmentId) {
         Attachment attachment = attachmentManager.getAttachment(attachmentId);
         return attachmentManager.getAttachmentData(attachment);
@@ -247,25 +334,57 @@ public class AttachmentUtilImpl implements AttachmentUtil {
         return attachmentId + "_" + version + "_" + hashCode;
     }
 
+    /**
+     * Tells whether the current data of the attachment version was written by the editor, which stores
+     * the content digest along with every save.
+     */
+    public boolean isSavedByEditor (Attachment attachment) {
+        String storedDigest = attachment.getProperties().getStringProperty(CONTENT_DIGEST);
+        return storedDigest != null && storedDigest.startsWith(attachment.getVersion() + ":");
+    }
+
+    public String getContentDigest (Attachment attachment) throws IOException {
+        String prefix = attachment.getVersion() + ":";
+        String storedDigest = attachment.getProperties().getStringProperty(CONTENT_DIGEST);
+
+        if (storedDigest != null && storedDigest.startsWith(prefix)) {
+            return storedDigest.substring(prefix.length());
+        }
+
+        try (InputStream data = attachmentManager.getAttachmentData(attachment)) {
+            MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+            return Hex.encodeHexString(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public String getCollaborativeEditingKey (Long attachmentId) {
-        return getProperty(attachmentId, "onlyoffice-collaborative-editor-key");
+        return getProperty(attachmentId, COLLABORATIVE_EDITING_KEY);
     }
 
     public void setCollaborativeEditingKey (Long attachmentId, String key) {
         if (key == null || key.isEmpty()) {
-            removeProperty(attachmentId, "onlyoffice-collaborative-editor-key");
+            removeProperty(attachmentId, COLLABORATIVE_EDITING_KEY);
         } else {
-            setProperty(attachmentId, "onlyoffice-collaborative-editor-key", key);
+            setProperty(attachmentId, COLLABORATIVE_EDITING_KEY, key);
         }
     }
 
     public String getProperty (Long attachmentId, String name) {
-        Attachment attachment = attachmentManager.getAttachment(attachmentId);
-        if (attachment != null) {
-            ContentProperties contentProperties = attachment.getProperties();
-            return contentProperties.getStringProperty(name);
-        }
-        return null;
+        return inTransaction(() -> {
+            Attachment attachment = attachmentManager.getAttachment(attachmentId);
+            if (attachment != null) {
+                ContentProperties contentProperties = attachment.getProperties();
+                return contentProperties.getStringProperty(name);
+            }
+            return null;
+        });
     }
 
     public boolean getPropertyAsBoolean (Long attachmentId, String name) {
@@ -275,13 +394,12 @@ public class AttachmentUtilImpl implements AttachmentUtil {
 
     public void setProperty (Long attachmentId, String name, String value) {
         AttachmentDao attDao = attachmentManager.getAttachmentDao();
-        Attachment attachment = attDao.getById(attachmentId);
-
-        attachment.getProperties().setStringProperty(name, value);
 
         Object result = transactionTemplate.execute(new TransactionCallback() {
             @Override
             public Object doInTransaction() {
+                Attachment attachment = attDao.getById(attachmentId);
+                attachment.getProperties().setStringProperty(name, value);
                 attDao.updateAttachment(attachment);
                 return null;
             }
@@ -290,13 +408,39 @@ public class AttachmentUtilImpl implements AttachmentUtil {
 
     public void removeProperty (Long attachmentId, String name) {
         AttachmentDao attDao = attachmentManager.getAttachmentDao();
-        Attachment attachment = attDao.getById(attachmentId);
 
-        attachment.getProperties().removeProperty(name);
+        Object result = transactionTemplate.execute(new TransactionCallback() {
+            @Override
+            public Object doInTransaction() {
+                Attachment attachment = attDao.getById(attachmentId);
+                attachment.getProperties().removeProperty(name);
+                attDao.updateAttachment(attachment);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Text properties are not limited in length, unlike string properties, and suit larger values such as JSON.
+     */
+    public String getTextProperty (Long attachmentId, String name) {
+        return inTransaction(() -> {
+            Attachment attachment = attachmentManager.getAttachment(attachmentId);
+            if (attachment != null) {
+                return attachment.getProperties().getTextProperty(name);
+            }
+            return null;
+        });
+    }
+
+    public void setTextProperty (Long attachmentId, String name, String value) {
+        AttachmentDao attDao = attachmentManager.getAttachmentDao();
 
         Object result = transactionTemplate.execute(new TransactionCallback() {
             @Override
             public Object doInTransaction() {
+                Attachment attachment = attDao.getById(attachmentId);
+                attachment.getProperties().setTextProperty(name, value);
                 attDao.updateAttachment(attachment);
                 return null;
             }
@@ -319,7 +463,7 @@ public class AttachmentUtilImpl implements AttachmentUtil {
     public Attachment getAttachmentChanges (Long attachmentId) {
         Attachment attachment = attachmentManager.getAttachment(attachmentId);
         if (attachment != null) {
-            return attachment.getAttachmentNamed("onlyoffice-changes.json");
+            return attachment.getAttachmentNamed(CHANGES_FILE_NAME);
         }
         return null;
     }
@@ -327,7 +471,7 @@ public class AttachmentUtilImpl implements AttachmentUtil {
     public Attachment getAttachmentDiff (Long attachmentId) {
         Attachment attachment = attachmentManager.getAttachment(attachmentId);
         if (attachment != null) {
-            return attachment.getAttachmentNamed("onlyoffice-diff.zip");
+            return attachment.getAttachmentNamed(DIFF_FILE_NAME);
         }
         return null;
     }
@@ -394,4 +538,64 @@ public class AttachmentUtilImpl implements AttachmentUtil {
         );
     }
 
-}
\ No newline at end of file
+    /**
+     * Resolves the file Confluence keeps the data of an attachment version in, when attachments are stored
+     * in the hierarchical layout of the home directory. Returns {@code null} for any other storage,
+     * so callers fall back to {@link #getAttachmentData(Long)}.
+     */
+    public File getAttachmentFile(Attachment attachment) {
+        if (attachment == null || attachment.getContainer() == null) {
+            return null;
+        }
+
+        long originalId = attachment.isLatestVersion() ? attachment.getId() : attachment.getLatestVersionId();
+        String space = attachment.getSpace() != null ? getHierarchy(attachment.getSpace().getId()) : "nonspaced";
+
+        File file = new File(getAttachmentsDirectory(), "ver003"
+                + File.separator + space
+                + File.separator + getHierarchy(attachment.getContainer().getId())
+                + File.separator + originalId
+                + File.separator + attachment.getVersion());
+
+        if (!file.isFile()) {
+            metricsManager.increment("attachment.file.missed");
+            return null;
+        }
+
+        return file;
+    }
+
+    /**
+     * A cluster keeps attachments in the shared home, a single node in its local home unless it was set up
+     * with a shared home of its own.
+     */
+    private File getAttachmentsDirectory() {
+        File directory = attachmentsDirectory;
+        if (directory == null) {
+            directory = new File(bootstrapManager.getSharedHome(), "attachments");
+            if (!directory.isDirectory()) {
+                directory = new File(bootstrapManager.getConfiguredLocalHome(), "attachments");
+            }
+            attachmentsDirectory = directory;
+        }
+        return directory;
+    }
+
+    /**
+     * Request work may run off the container thread, where no session is open, see ExecutionManager.
+     * Reads that navigate lazy state go through here; on a request thread they join its transaction.
+     */
+    private <T> T inTransaction(Supplier<T> supplier) {
+        return transactionTemplate.execute(new TransactionCallback<T>() {
+            @Override
+            public T doInTransaction() {
+                return supplier.get();
+            }
+        });
+    }
+
+    private String getHierarchy(long id) {
+        return (id % 250) + File.separator + ((id / 1000) % 250) + File.separator + id;
+    }
+
+}
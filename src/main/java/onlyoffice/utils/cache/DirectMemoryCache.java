@@ -0,0 +1,249 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.utils.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Least recently used cache of byte contents held in direct buffers, limited by total size.
+ * The contents live outside the Java heap, so a full cache adds nothing to garbage collection work.
+ *
+ * Buffers are allocated through the cache, so the limit covers loads in progress as well. An evicted
+ * entry still counts against the limit until its last reader is closed; its memory is then released
+ * right away instead of waiting for the garbage collector. Streams returned by the cache must be closed.
+ */
+public class DirectMemoryCache {
+    private static final Consumer<ByteBuffer> FREE = getFree();
+
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long reserved = 0;
+
+    public DirectMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a stream over the cached content, or {@code null} if there is none.
+     */
+    public synchronized InputStream get(String key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.open() : null;
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Allocates a buffer for content of the given size, evicting least recently used entries to stay
+     * within the limit. Returns {@code null} if the limit cannot be kept because the rest of the memory
+     * is being read or loaded. The buffer must be passed to {@link #put} or {@link #release}.
+     */
+    public synchronized ByteBuffer allocate(int capacity) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size + reserved + capacity > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.buffer.capacity();
+            retire(entry);
+        }
+
+        if (size + reserved + capacity > maxSize) {
+            return null;
+        }
+
+        reserved += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Stores the content of a buffer from {@link #allocate}, which must be full and not changed afterwards.
+     * Returns a stream over the content.
+     */
+    public synchronized InputStream put(String key, ByteBuffer buffer) {
+        reserved -= buffer.capacity();
+        size += buffer.capacity();
+
+        Entry entry = new Entry(buffer);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.buffer.capacity();
+            retire(previous);
+        }
+
+        return entry.open();
+    }
+
+    /**
+     * Gives back a buffer from {@link #allocate} whose content is not stored.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        reserved -= buffer.capacity();
+        FREE.accept(buffer);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    private void retire(Entry entry) {
+        entry.retired = true;
+        if (entry.readers == 0) {
+            FREE.accept(entry.buffer);
+        } else {
+            reserved += entry.buffer.capacity();
+        }
+    }
+
+    private synchronized void close(Entry entry) {
+        entry.readers--;
+        if (entry.retired && entry.readers == 0) {
+            reserved -= entry.buffer.capacity();
+            FREE.accept(entry.buffer);
+        }
+    }
+
+    /**
+     * Finds the way to release the memory of a direct buffer on this runtime. Where there is none,
+     * the memory is left to the garbage collector.
+     */
+    private static Consumer<ByteBuffer> getFree() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException | RuntimeException e) { }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) { }
+
+        try {
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                try {
+                    Object bufferCleaner = cleaner.invoke(buffer);
+                    if (bufferCleaner != null) {
+                        clean.invoke(bufferCleaner);
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) { }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) { }
+
+        return buffer -> { };
+    }
+
+    private class Entry {
+        private final ByteBuffer buffer;
+        private int readers = 0;
+        private boolean retired = false;
+
+        Entry(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        InputStream open() {
+            readers++;
+            return new ByteBufferInputStream(this, buffer.asReadOnlyBuffer());
+        }
+    }
+
+    private class ByteBufferInputStream extends InputStream {
+        private final Entry entry;
+        private final ByteBuffer buffer;
+        private volatile boolean closed = false;
+
+        ByteBufferInputStream(Entry entry, ByteBuffer buffer) {
+            this.entry = entry;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            check();
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            check();
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            check();
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            check();
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            synchronized (DirectMemoryCache.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            DirectMemoryCache.this.close(entry);
+        }
+
+        // the memory may already be released, so it must not be touched after closing
+        private void check() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
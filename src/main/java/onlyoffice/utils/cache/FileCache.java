@@ -0,0 +1,217 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.utils.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Directory of cached files with an optional properties file per entry, limited by total size.
+ * Entries are sharded by the first two characters of their name. Reads refresh the modification
+ * time, and when the limit is exceeded the least recently used entries are removed first.
+ * Writes go through a temporary file and an atomic move, so nodes sharing the directory never
+ * see a partially written entry.
+ */
+public class FileCache {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]{2,}");
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong(-1);
+
+    public FileCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public File get(String name) {
+        File file = getFile(name);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    public File put(String name, InputStream data) throws IOException {
+        File file = getFile(name);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create cache directory " + parent);
+        }
+
+        File temp = new File(parent, name + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        long length;
+        try (OutputStream out = new FileOutputStream(temp)) {
+            length = IOUtils.copyLarge(data, out);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        move(temp, file);
+
+        if (size.get() < 0 || size.addAndGet(length) > maxSize) {
+            evict();
+        }
+
+        return file;
+    }
+
+    public Properties getMeta(String name) {
+        Properties meta = new Properties();
+        File file = getFile(name + META_SUFFIX);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                meta.load(in);
+            } catch (IOException e) {
+                return new Properties();
+            }
+        }
+        return meta;
+    }
+
+    public void setMeta(String name, Properties meta) throws IOException {
+        File file = getFile(name + META_SUFFIX);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create cache directory " + parent);
+        }
+
+        File temp = new File(parent, name + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            meta.store(out, null);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        move(temp, file);
+    }
+
+    public void remove(String name) {
+        File file = getFile(name);
+        long length = file.length();
+        if (file.delete() && size.get() >= 0) {
+            size.addAndGet(-length);
+        }
+        getFile(name + META_SUFFIX).delete();
+    }
+
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        for (File file : listFiles()) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Rescans the directory and removes the least recently used entries until the cache fits its limit.
+     * Temporary files left behind by an interrupted write are removed once they are an hour old.
+     */
+    public synchronized void evict() {
+        List<File> files = listFiles();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+
+        if (total > maxSize) {
+            files.sort(Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (total <= maxSize) {
+                    break;
+                }
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                    new File(file.getParentFile(), file.getName() + META_SUFFIX).delete();
+                }
+            }
+        }
+
+        size.set(total);
+    }
+
+    private List<File> listFiles() {
+        List<File> files = new ArrayList<>();
+        File[] shards = directory.listFiles(File::isDirectory);
+        if (shards == null) {
+            return files;
+        }
+
+        long staleTemp = System.currentTimeMillis() - 3600 * 1000;
+        for (File shard : shards) {
+            File[] entries = shard.listFiles(File::isFile);
+            if (entries == null) {
+                continue;
+            }
+            for (File entry : entries) {
+                String name = entry.getName();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    if (entry.lastModified() < staleTemp) {
+                        entry.delete();
+                    }
+                } else if (!name.endsWith(META_SUFFIX)) {
+                    files.add(entry);
+                }
+            }
+        }
+        return files;
+    }
+
+    private File getFile(String name) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid cache entry name " + name);
+        }
+        return new File(new File(directory, name.substring(0, 2)), name);
+    }
+
+    private void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
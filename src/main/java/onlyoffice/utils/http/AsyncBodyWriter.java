@@ -0,0 +1,118 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.utils.http;
+
+import onlyoffice.managers.metrics.MetricsManager;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds a response body from a stream as fast as the client takes it. The container calls back whenever
+ * the output can accept more, so no thread is held while a slow client drains its buffer.
+ */
+class AsyncBodyWriter implements WriteListener, AsyncListener {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext context;
+    private final ServletOutputStream output;
+    private final InputStream input;
+    private final MetricsManager metricsManager;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private final long started = System.nanoTime();
+
+    private long remaining;
+    private boolean finished = false;
+
+    AsyncBodyWriter(AsyncContext context, ServletOutputStream output, InputStream input, long count,
+            MetricsManager metricsManager) {
+        this.context = context;
+        this.output = output;
+        this.input = input;
+        this.remaining = count;
+        this.metricsManager = metricsManager;
+
+        metricsManager.increment("download.async.started");
+        metricsManager.add("download.async.active", 1);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (output.isReady()) {
+            if (remaining <= 0) {
+                finish(true);
+                return;
+            }
+
+            int length = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (length < 0) {
+                throw new IOException("Content ended " + remaining + " bytes before the expected length");
+            }
+
+            remaining -= length;
+            output.write(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        finish(false);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        finish(false);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish(false);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        finish(remaining <= 0);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private synchronized void finish(boolean completed) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        IOUtils.closeQuietly(input);
+
+        metricsManager.add("download.async.active", -1);
+        metricsManager.increment(completed ? "download.async.completed" : "download.async.failed");
+        metricsManager.recordTiming("download.async", (System.nanoTime() - started) / 1000);
+
+        context.complete();
+    }
+}
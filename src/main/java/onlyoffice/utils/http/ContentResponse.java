@@ -0,0 +1,255 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package onlyoffice.utils.http;
+
+import onlyoffice.managers.metrics.MetricsManager;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends stored content with a strong validator. Answers conditional requests with 304 and serves a single
+ * byte range with 206; a request for several ranges gets the whole content, which HTTP allows.
+ * The content is only opened when a body is actually sent.
+ *
+ * <p>When the content is also available as a file, the body is handed to the container's sendfile support
+ * where there is one (Tomcat's NIO connector), and is otherwise transferred from a file channel.
+ * In async mode the body is written with non-blocking output instead, when the request supports it.
+ */
+public class ContentResponse {
+    public static final String IMMUTABLE = "max-age=31536000, immutable";
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final long ASYNC_TIMEOUT = 10 * 60 * 1000;
+
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final String contentType;
+    private final long length;
+    private final String etag;
+    private String cacheControl = "no-cache";
+    private File file;
+    private MetricsManager asyncMetrics;
+
+    public ContentResponse(String contentType, long length, String tag) {
+        this.contentType = contentType;
+        this.length = length;
+        this.etag = "\"" + tag + "-" + Long.toString(length, 36) + "\"";
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public void setCacheControl(String cacheControl) {
+        this.cacheControl = cacheControl;
+    }
+
+    /**
+     * Sets the file holding the content. It is only used while its size matches the content length,
+     * so a file that is being replaced is never sent in place of the content.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes the body without holding a request thread, and counts the downloads in progress.
+     */
+    public void setAsync(MetricsManager metricsManager) {
+        this.asyncMetrics = metricsManager;
+    }
+
+    public void send(HttpServletRequest request, HttpServletResponse response, Source source) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (matches(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range);
+            if (bounds != null) {
+                if (bounds[0] >= length || bounds[0] > bounds[1]) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+
+                start = bounds[0];
+                end = Math.min(bounds[1], length - 1);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setContentLengthLong(end - start + 1);
+
+        boolean async = asyncMetrics != null && request.isAsyncSupported();
+        if (asyncMetrics != null && !async) {
+            asyncMetrics.increment("download.async.unsupported");
+        }
+
+        boolean fromFile = file != null && file.isFile() && file.length() == length;
+        if (fromFile) {
+            if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, end + 1);
+                return;
+            }
+
+            if (!async && transfer(response, start, end - start + 1)) {
+                return;
+            }
+        }
+
+        if (async) {
+            InputStream inputStream = fromFile ? Files.newInputStream(file.toPath()) : source.open();
+            AsyncContext context;
+            ServletOutputStream output;
+            try {
+                IOUtils.skipFully(inputStream, start);
+
+                context = request.startAsync();
+                context.setTimeout(ASYNC_TIMEOUT);
+                output = response.getOutputStream();
+            } catch (IOException | RuntimeException e) {
+                IOUtils.closeQuietly(inputStream);
+                throw e;
+            }
+
+            AsyncBodyWriter writer = new AsyncBodyWriter(context, output, inputStream, end - start + 1, asyncMetrics);
+            context.addListener(writer);
+            output.setWriteListener(writer);
+            return;
+        }
+
+        try (InputStream inputStream = source.open()) {
+            OutputStream output = response.getOutputStream();
+            IOUtils.copyLarge(inputStream, output, start, end - start + 1);
+        }
+    }
+
+    /**
+     * Copies the range straight from the file channel. Returns {@code false} if the file could not be opened,
+     * in which case nothing has been written.
+     */
+    private boolean transfer(HttpServletResponse response, long position, long count) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            while (count > 0) {
+                long sent = channel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    throw new IOException("File " + file + " ended before the expected length");
+                }
+                position += sent;
+                count -= sent;
+            }
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+    private boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first and last byte of a single range, or {@code null} when the header is not one
+     * this class serves as a range, in which case the whole content is sent.
+     */
+    private long[] parseRange(String range) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                return suffix > 0 ? new long[] {Math.max(0, length - suffix), length - 1} : null;
+            }
+
+            long start = Long.parseLong(first);
+            if (last.isEmpty()) {
+                return new long[] {start, length - 1};
+            }
+
+            // a range ending before it starts is invalid, so it is ignored rather than answered with 416
+            long end = Long.parseLong(last);
+            return end >= start ? new long[] {start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -18,4 +18,17 @@
 
 jQuery(document).ready(function() {
     jQuery(".onlyoffice-doceditor").each(function(){jQuery(this).attr("target", "_blank");});
+
+    var thumbnailUrl = AJS.contextPath() + "/plugins/servlet/onlyoffice/thumbnail?size=small&attachmentId=";
+    jQuery("tr[data-attachment-id]").each(function() {
+        var row = jQuery(this);
+        if (!row.find(".onlyoffice-doceditor").length) return;
+
+        var icon = row.find(".filename-column .icon, .filename-column .aui-icon").first();
+        if (!icon.length) return;
+
+        jQuery("<img class=\"onlyoffice-thumbnail\" loading=\"lazy\" width=\"48\" alt=\"\">")
+            .attr("src", thumbnailUrl + encodeURIComponent(row.attr("data-attachment-id")))
+            .replaceAll(icon);
+    });
 });
\ No newline at end of file
@@ -0,0 +1,252 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.managers.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.atlassian.confluence.pages.Attachment;
+import onlyoffice.managers.configuration.ConfigurationManager;
+import onlyoffice.managers.document.DocumentManager;
+import onlyoffice.managers.metrics.MetricsManager;
+import onlyoffice.testing.Fakes;
+import onlyoffice.utils.attachment.AttachmentUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FormatManagerImplTest {
+    private static final byte[] OLE2 = {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1,
+            0, 0, 0, 0, 0, 0, 0, 0};
+
+    private Properties properties;
+    private byte[] data;
+    private int version;
+    private int reads;
+    private FormatManagerImpl formatManager;
+
+    @Before
+    public void setUp() throws IOException {
+        properties = new Properties();
+        try (InputStream inputStream = getClass().getResourceAsStream("/onlyoffice-config.properties")) {
+            properties.load(inputStream);
+        }
+
+        reads = 0;
+        formatManager = new FormatManagerImpl(fake(AttachmentUtil.class), fake(DocumentManager.class),
+                fake(ConfigurationManager.class), fake(MetricsManager.class));
+    }
+
+    @Test
+    public void keepsLegacyBinaryFormats() {
+        assertEquals("xls", getFileType("xls", OLE2));
+        assertEquals("doc", getFileType("doc", OLE2));
+    }
+
+    @Test
+    public void keepsPasswordProtectedOoxml() {
+        assertEquals("docx", getFileType("docx", OLE2));
+    }
+
+    @Test
+    public void correctsBinaryContentNamedAsOtherFormat() {
+        assertEquals("doc", getFileType("odt", OLE2));
+        assertEquals("ppt", getFileType("odp", OLE2));
+    }
+
+    @Test
+    public void correctsZippedWorkbookNamedAsXls() throws IOException {
+        assertEquals("xlsx", getFileType("xls", ooxml("xl/workbook.xml", ZipEntry.STORED)));
+    }
+
+    @Test
+    public void findsOoxmlPartsAfterEntriesWithDataDescriptors() throws IOException {
+        assertEquals("xlsx", getFileType("xls", ooxml("xl/workbook.xml", ZipEntry.DEFLATED)));
+    }
+
+    @Test
+    public void keepsOoxmlOfTheSameFamily() throws IOException {
+        assertEquals("xlsm", getFileType("xlsm", ooxml("xl/workbook.xml", ZipEntry.STORED)));
+        assertEquals("docx", getFileType("docx", ooxml("word/document.xml", ZipEntry.STORED)));
+    }
+
+    @Test
+    public void rejectsOoxmlOfOtherDocumentType() throws IOException {
+        assertNull(getFileType("xlsx", ooxml("word/document.xml", ZipEntry.STORED)));
+        assertNull(getFileType("pptx", ooxml("xl/workbook.xml", ZipEntry.STORED)));
+    }
+
+    @Test
+    public void detectsOdfByMimetype() throws IOException {
+        assertEquals("ods", getFileType("ods", odf("application/vnd.oasis.opendocument.spreadsheet")));
+        assertEquals("ods", getFileType("xlsx", odf("application/vnd.oasis.opendocument.spreadsheet")));
+        assertNull(getFileType("docx", odf("application/vnd.oasis.opendocument.spreadsheet")));
+    }
+
+    @Test
+    public void rejectsUnknownZipNamedAsLegacyFormat() throws IOException {
+        assertNull(getFileType("doc", zip(ZipEntry.STORED, "readme.txt", "text")));
+    }
+
+    @Test
+    public void opensHtmlNamedAsDocAsHtml() {
+        assertEquals("html", getFileType("doc", text("<!DOCTYPE html><html><body>table</body></html>")));
+        assertEquals("htm", getFileType("htm", text("<html><body></body></html>")));
+    }
+
+    @Test
+    public void rejectsHtmlNamedAsSpreadsheet() {
+        assertNull(getFileType("xls", text("<html><body><table><tr><td>1</td></tr></table></body></html>")));
+    }
+
+    @Test
+    public void detectsPdfAndRtf() {
+        assertEquals("pdf", getFileType("pdf", text("%PDF-1.7\n")));
+        assertEquals("rtf", getFileType("rtf", text("{\\rtf1\\ansi text}")));
+        assertEquals("rtf", getFileType("doc", text("{\\rtf1\\ansi text}")));
+    }
+
+    @Test
+    public void opensPlainTextAsText() {
+        assertEquals("csv", getFileType("csv", text("a,b,c\n1,2,3\n")));
+        assertEquals("csv", getFileType("xls", text("a,b,c\n1,2,3\n")));
+        assertEquals("txt", getFileType("doc", text("plain text\n")));
+    }
+
+    @Test
+    public void rejectsBinaryGarbage() {
+        byte[] garbage = new byte[256];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = (byte) (i * 7);
+        }
+        assertNull(getFileType("docx", garbage));
+    }
+
+    @Test
+    public void trustsExtensionsThatAreNotSniffed() {
+        assertEquals("epub", getFileType("epub", new byte[] {0, 1, 2}));
+        assertEquals(0, reads);
+    }
+
+    @Test
+    public void trustsEmptyFiles() {
+        assertEquals("docx", getFileType("docx", new byte[0]));
+        assertEquals(0, reads);
+    }
+
+    @Test
+    public void keepsVerdictPerVersion() throws IOException {
+        Attachment attachment = attachment("xls", ooxml("xl/workbook.xml", ZipEntry.STORED));
+        assertEquals("xlsx", formatManager.getFileType(attachment));
+        assertEquals("xlsx", formatManager.getFileType(attachment));
+        assertEquals(1, reads);
+    }
+
+    private String getFileType(String ext, byte[] content) {
+        return formatManager.getFileType(attachment(ext, content));
+    }
+
+    private Attachment attachment(String ext, byte[] content) {
+        data = content;
+        version++;
+        return new Attachment() {
+            @Override
+            public long getId() {
+                return 1;
+            }
+
+            @Override
+            public String getFileExtension() {
+                return ext;
+            }
+
+            @Override
+            public long getFileSize() {
+                return content.length;
+            }
+        };
+    }
+
+    private byte[] text(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] ooxml(String part, int method) throws IOException {
+        return zip(method, "[Content_Types].xml", "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\"/>",
+                "_rels/.rels", "<Relationships/>", part, "<root/>");
+    }
+
+    private byte[] odf(String mimetype) throws IOException {
+        return zip(ZipEntry.STORED, "mimetype", mimetype, "content.xml", "<office:document-content/>");
+    }
+
+    private byte[] zip(int method, String... entries) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                byte[] content = entries[i + 1].getBytes(StandardCharsets.UTF_8);
+                ZipEntry entry = new ZipEntry(entries[i]);
+                entry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setSize(content.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private <T> T fake(Class<T> type) {
+        return Fakes.fake(type, (method, args) -> {
+            switch (method) {
+                case "getDocType":
+                    for (String docType : new String[] {"word", "cell", "slide"}) {
+                        if (Arrays.asList(properties.getProperty("docservice.type." + docType).split("\\|")).contains(args[0])) {
+                            return docType;
+                        }
+                    }
+                    return null;
+                case "getLongProperty":
+                    return args[1];
+                case "getVersionTag":
+                    return "1." + version;
+                case "getAttachmentData":
+                    reads++;
+                    return new ByteArrayInputStream(data);
+                default:
+                    return null;
+            }
+        });
+    }
+}
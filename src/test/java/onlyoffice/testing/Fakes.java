@@ -0,0 +1,54 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.testing;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Stand-ins for the interfaces a unit under test talks to. Every call is passed to an answer by method name;
+ * a call the answer has nothing for returns null, or zero and false where the method returns a primitive.
+ */
+public final class Fakes {
+    public interface Answer {
+        Object answer(String method, Object[] args) throws Throwable;
+    }
+
+    private Fakes() { }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T fake(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Object result = answer.answer(method.getName(), args);
+            if (result != null || !method.getReturnType().isPrimitive()) {
+                return result;
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) return false;
+            if (returnType == char.class) return '\0';
+            if (returnType == void.class) return null;
+            if (returnType == long.class) return 0L;
+            if (returnType == float.class) return 0f;
+            if (returnType == double.class) return 0d;
+            if (returnType == byte.class) return (byte) 0;
+            if (returnType == short.class) return (short) 0;
+            return 0;
+        });
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ *
+ * (c) Copyright Ascensio System SIA 2022
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package onlyoffice.utils.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import onlyoffice.testing.Fakes;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentResponseTest {
+    private static final byte[] DATA = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    private Map<String, String> requestHeaders;
+    private Map<String, String> responseHeaders;
+    private ByteArrayOutputStream body;
+    private int status;
+
+    @Before
+    public void setUp() {
+        requestHeaders = new HashMap<>();
+        responseHeaders = new HashMap<>();
+        body = new ByteArrayOutputStream();
+        status = HttpServletResponse.SC_OK;
+    }
+
+    @Test
+    public void sendsWholeContentWithoutRange() throws Exception {
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("0123456789", body.toString("US-ASCII"));
+        assertEquals("bytes", responseHeaders.get("Accept-Ranges"));
+    }
+
+    @Test
+    public void sendsClosedRange() throws Exception {
+        requestHeaders.put("Range", "bytes=2-4");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("bytes 2-4/10", responseHeaders.get("Content-Range"));
+        assertEquals("234", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void sendsOpenRangeToTheEnd() throws Exception {
+        requestHeaders.put("Range", "bytes=7-");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("bytes 7-9/10", responseHeaders.get("Content-Range"));
+        assertEquals("789", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void sendsSuffixRange() throws Exception {
+        requestHeaders.put("Range", "bytes=-3");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("bytes 7-9/10", responseHeaders.get("Content-Range"));
+        assertEquals("789", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void limitsSuffixLongerThanContent() throws Exception {
+        requestHeaders.put("Range", "bytes=-50");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("bytes 0-9/10", responseHeaders.get("Content-Range"));
+    }
+
+    @Test
+    public void limitsRangeEndToContent() throws Exception {
+        requestHeaders.put("Range", "bytes=8-100");
+        send(DATA);
+
+        assertEquals("bytes 8-9/10", responseHeaders.get("Content-Range"));
+        assertEquals("89", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void rejectsRangeStartingPastTheEnd() throws Exception {
+        requestHeaders.put("Range", "bytes=10-");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, status);
+        assertEquals("bytes */10", responseHeaders.get("Content-Range"));
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void rejectsAnyRangeOfEmptyContent() throws Exception {
+        requestHeaders.put("Range", "bytes=0-");
+        send(new byte[0]);
+
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, status);
+        assertEquals("bytes */0", responseHeaders.get("Content-Range"));
+    }
+
+    @Test
+    public void sendsEmptyContentWithoutRange() throws Exception {
+        send(new byte[0]);
+
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void ignoresInvalidRanges() throws Exception {
+        for (String range : new String[] {"bytes=4-2", "bytes=0-1,4-5", "items=0-1", "bytes=a-b", "bytes=5"}) {
+            setUp();
+            requestHeaders.put("Range", range);
+            send(DATA);
+
+            assertEquals(range, HttpServletResponse.SC_OK, status);
+            assertNull(range, responseHeaders.get("Content-Range"));
+            assertEquals(range, "0123456789", body.toString("US-ASCII"));
+        }
+    }
+
+    @Test
+    public void sendsRangeWhenIfRangeMatches() throws Exception {
+        ContentResponse content = new ContentResponse("text/plain", DATA.length, "tag");
+        requestHeaders.put("Range", "bytes=0-0");
+        requestHeaders.put("If-Range", content.getETag());
+        send(content, DATA);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("0", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void sendsWholeContentWhenIfRangeDiffers() throws Exception {
+        requestHeaders.put("Range", "bytes=0-0");
+        requestHeaders.put("If-Range", "\"other\"");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("0123456789", body.toString("US-ASCII"));
+    }
+
+    @Test
+    public void answersNotModifiedForMatchingTag() throws Exception {
+        ContentResponse content = new ContentResponse("text/plain", DATA.length, "tag");
+
+        for (String ifNoneMatch : new String[] {content.getETag(), "\"a\", " + content.getETag(), "W/" + content.getETag(), "*"}) {
+            setUp();
+            requestHeaders.put("If-None-Match", ifNoneMatch);
+            send(content, DATA);
+
+            assertEquals(ifNoneMatch, HttpServletResponse.SC_NOT_MODIFIED, status);
+            assertEquals(ifNoneMatch, 0, body.size());
+        }
+    }
+
+    @Test
+    public void sendsContentForOtherTag() throws Exception {
+        requestHeaders.put("If-None-Match", "\"other\"");
+        send(DATA);
+
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("0123456789", body.toString("US-ASCII"));
+    }
+
+    private void send(byte[] data) throws Exception {
+        send(new ContentResponse("text/plain", data.length, "tag"), data);
+    }
+
+    private void send(ContentResponse content, byte[] data) throws Exception {
+        content.send(createRequest(), createResponse(), () -> new ByteArrayInputStream(data));
+    }
+
+    private HttpServletRequest createRequest() {
+        return Fakes.fake(HttpServletRequest.class, (method, args) -> {
+            switch (method) {
+                case "getHeader": return requestHeaders.get(args[0]);
+                default: return null;
+            }
+        });
+    }
+
+    private HttpServletResponse createResponse() {
+        ServletOutputStream output = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) { }
+        };
+
+        return Fakes.fake(HttpServletResponse.class, (method, args) -> {
+            switch (method) {
+                case "setHeader": responseHeaders.put((String) args[0], (String) args[1]); return null;
+                case "setStatus":
+                case "sendError": status = (Integer) args[0]; return null;
+                case "getOutputStream": return output;
+                default: return null;
+            }
+        });
+    }
+}